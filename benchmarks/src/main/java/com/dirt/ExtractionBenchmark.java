@@ -0,0 +1,55 @@
+package com.dirt;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * PathExtractor.extractPaths over the fixture sentences, as Job 1's
+ * mapper runs it: each line is parsed into the reused Sentence and then
+ * extracted. Subtract ParseBenchmark to isolate the extraction. The
+ * stem cache is warm after the first pass, as in a long-running mapper.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ExtractionBenchmark {
+    private byte[][] lines;
+    private DirtDriver.Job1_Extraction.Map parser;
+    private DirtDriver.PathExtractor extractor;
+
+    @Setup
+    public void setup() {
+        lines = Fixture.lines().toArray(new byte[0][]);
+        parser = new DirtDriver.Job1_Extraction.Map();
+        extractor = new DirtDriver.PathExtractor(new DirtDriver.StemCache());
+        int paths = 0;
+        for (byte[] line : lines) {
+            DirtDriver.Sentence tokens = parser.parseLine(line, line.length);
+            if (tokens != null)
+                paths += extractor.extractPaths(tokens);
+        }
+        if (paths == 0)
+            throw new IllegalStateException("The fixture yields no paths");
+    }
+
+    /** One operation parses and extracts every fixture line. */
+    @Benchmark
+    public void extractPaths(Blackhole bh) {
+        for (byte[] line : lines) {
+            DirtDriver.Sentence tokens = parser.parseLine(line, line.length);
+            if (tokens == null)
+                continue;
+            int n = extractor.extractPaths(tokens);
+            for (int i = 0; i < n; i++) {
+                bh.consume(extractor.path(i));
+                bh.consume(extractor.x(i));
+                bh.consume(extractor.y(i));
+            }
+        }
+    }
+}
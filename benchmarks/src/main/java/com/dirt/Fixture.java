@@ -0,0 +1,84 @@
+package com.dirt;
+
+import com.dirt.DirtDriver.PathVector;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Fixed benchmark inputs: the biarcs lines bundled as
+ * biarcs-fixture.txt, and path vectors drawn from a seeded generator
+ * with a skewed word distribution, so vectors share features the way
+ * real paths do.
+ */
+final class Fixture {
+    static final long SEED = 42;
+
+    private Fixture() {
+    }
+
+    /** The fixture lines as UTF-8 bytes, as Job 1's mapper receives them. */
+    static List<byte[]> lines() {
+        List<byte[]> lines = new ArrayList<>();
+        try (BufferedReader br = new BufferedReader(new InputStreamReader(
+                Fixture.class.getResourceAsStream("/biarcs-fixture.txt"), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = br.readLine()) != null)
+                lines.add(line.getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return lines;
+    }
+
+    /** The distinct words of the fixture's tokens, in order of first appearance. */
+    static List<String> words() {
+        Set<String> words = new HashSet<>();
+        List<String> ordered = new ArrayList<>();
+        for (byte[] b : lines()) {
+            String[] fields = new String(b, StandardCharsets.UTF_8).split("\t");
+            if (fields.length < 2)
+                continue;
+            for (String token : fields[1].split(" ")) {
+                int slash = token.indexOf('/');
+                String word = slash < 0 ? token : token.substring(0, slash);
+                if (words.add(word))
+                    ordered.add(word);
+            }
+        }
+        return ordered;
+    }
+
+    /**
+     * Sorted vectors of the given number of paths over a vocabulary of
+     * the given size, with about meanSize features each. Word ids are
+     * drawn with a cubic skew, so low ids are common features.
+     */
+    static PathVector[] vectors(int paths, int vocabulary, int meanSize) {
+        Random random = new Random(SEED);
+        PathVector[] vectors = new PathVector[paths];
+        for (int p = 0; p < paths; p++) {
+            PathVector v = new PathVector();
+            int size = 1 + random.nextInt(2 * meanSize);
+            Set<Long> seen = new HashSet<>();
+            for (int i = 0; i < size; i++) {
+                int slot = random.nextInt(2);
+                double r = random.nextDouble();
+                int word = (int) (vocabulary * r * r * r);
+                if (seen.add(DirtDriver.Ids.pack(slot, word)))
+                    v.add(slot, word, 0.01 + 8 * random.nextDouble());
+            }
+            v.sort();
+            vectors[p] = v;
+        }
+        return vectors;
+    }
+}
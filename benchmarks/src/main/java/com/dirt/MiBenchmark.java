@@ -0,0 +1,67 @@
+package com.dirt;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The MI loop of Job2_MI.Reduce over fixed (path, slot) groups: MI per
+ * triple, the threshold, the FeatureMI output record and the SumMI
+ * total. Group sizes are skewed like real paths, from one triple to a
+ * few thousand.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MiBenchmark {
+    private static final int GROUPS = 1000;
+
+    private long n;
+    private long[] psCounts;
+    private long[][] counts;
+    private long[][] wordMargins;
+    private final DirtDriver.FeatureMI out = new DirtDriver.FeatureMI();
+
+    @Setup
+    public void setup() {
+        Random random = new Random(Fixture.SEED);
+        psCounts = new long[GROUPS];
+        counts = new long[GROUPS][];
+        wordMargins = new long[GROUPS][];
+        for (int g = 0; g < GROUPS; g++) {
+            double r = random.nextDouble();
+            int size = 1 + (int) (3000 * r * r * r);
+            counts[g] = new long[size];
+            wordMargins[g] = new long[size];
+            for (int i = 0; i < size; i++) {
+                counts[g][i] = 1 + random.nextInt(500);
+                wordMargins[g][i] = counts[g][i] + random.nextInt(1_000_000);
+                psCounts[g] += counts[g][i];
+            }
+            n += psCounts[g];
+        }
+    }
+
+    /** One operation reduces every group. */
+    @Benchmark
+    public void miLoop(Blackhole bh) {
+        for (int g = 0; g < GROUPS; g++) {
+            double sumMI = 0;
+            long[] c = counts[g], m = wordMargins[g];
+            for (int i = 0; i < c.length; i++) {
+                double mi = DirtDriver.Job2_MI.mi(c[i], n, psCounts[g], m[i]);
+                if (mi > DirtDriver.Job2_MI.MIN_MI) {
+                    out.set(g, 0, i, mi);
+                    bh.consume(out);
+                    sumMI += mi;
+                }
+            }
+            bh.consume(sumMI);
+        }
+    }
+}
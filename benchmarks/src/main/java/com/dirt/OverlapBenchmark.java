@@ -0,0 +1,103 @@
+package com.dirt;
+
+import com.dirt.DirtDriver.Ids;
+import com.dirt.DirtDriver.PathVector;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Job3_Overlap.Reduce's intersection of one block: the feature runs
+ * arrive in (slot, word) order, and each is matched against the block's
+ * pairs. The block has as many paths as dirt.block.max.paths allows by
+ * default, each paired with a few others. PathVector.similarity, the
+ * merge used by the score command and the local engine, scores the
+ * same pairs for comparison.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class OverlapBenchmark {
+    private static final int PATHS = DirtDriver.Job3_Overlap.PairBlocks.DEFAULT_MAX_PATHS;
+    private static final int PAIRS_PER_PATH = 4;
+
+    private PathVector[] vectors;
+    private long[] pairs;
+    private byte[] runSlots;
+    private int[][] runPaths;
+    private double[][] runMIs;
+    private int[] firstPair;
+    private double[] numX;
+    private double[] numY;
+
+    @Setup
+    public void setup() {
+        vectors = Fixture.vectors(PATHS, 20_000, 150);
+        Random random = new Random(Fixture.SEED);
+        TreeSet<Long> pairSet = new TreeSet<>();
+        for (int p = 0; p < PATHS; p++)
+            for (int k = 0; k < PAIRS_PER_PATH; k++) {
+                int q = random.nextInt(PATHS);
+                if (q != p)
+                    pairSet.add(Ids.pack(Math.min(p, q), Math.max(p, q)));
+            }
+        pairs = new long[pairSet.size()];
+        int i = 0;
+        for (long pair : pairSet)
+            pairs[i++] = pair;
+
+        // The block's features as the reducer sees them: runs of (path, MI) in path order
+        TreeMap<Long, List<double[]>> runs = new TreeMap<>();
+        for (int p = 0; p < PATHS; p++)
+            for (int f = 0; f < vectors[p].size; f++)
+                runs.computeIfAbsent(vectors[p].features[f], k -> new ArrayList<>()).add(new double[] { p, vectors[p].mis[f] });
+        runSlots = new byte[runs.size()];
+        runPaths = new int[runs.size()][];
+        runMIs = new double[runs.size()][];
+        int r = 0;
+        for (Map.Entry<Long, List<double[]>> e : runs.entrySet()) {
+            runSlots[r] = (byte) Ids.high(e.getKey());
+            runPaths[r] = new int[e.getValue().size()];
+            runMIs[r] = new double[e.getValue().size()];
+            for (int j = 0; j < runPaths[r].length; j++) {
+                runPaths[r][j] = (int) e.getValue().get(j)[0];
+                runMIs[r][j] = e.getValue().get(j)[1];
+            }
+            r++;
+        }
+        firstPair = new int[PATHS];
+        numX = new double[pairs.length];
+        numY = new double[pairs.length];
+    }
+
+    /**
+     * One operation scores the whole block, including the per-block reset
+     * of the reused arrays the reducer does. The block's paths are 0..PATHS-1,
+     * so a path's block-local position is its id.
+     */
+    @Benchmark
+    public void blockIntersection(Blackhole bh) {
+        Arrays.fill(firstPair, -1);
+        for (int i = pairs.length - 1; i >= 0; i--)
+            firstPair[Ids.high(pairs[i])] = i;
+        Arrays.fill(numX, 0.0);
+        Arrays.fill(numY, 0.0);
+        for (int r = 0; r < runPaths.length; r++)
+            DirtDriver.Job3_Overlap.Reduce.match(pairs, firstPair, runPaths[r], runPaths[r], runMIs[r],
+                    runPaths[r].length, runSlots[r] == Ids.SLOT_X ? numX : numY);
+        bh.consume(numX);
+        bh.consume(numY);
+    }
+
+    /** One operation merges the two vectors of every block pair. */
+    @Benchmark
+    public void vectorMerge(Blackhole bh) {
+        for (long pair : pairs)
+            bh.consume(PathVector.similarity(vectors[Ids.high(pair)], vectors[Ids.low(pair)]));
+    }
+}
@@ -0,0 +1,35 @@
+package com.dirt;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/** Job1_Extraction.Map's parsing of biarcs lines into its reusable Sentence. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ParseBenchmark {
+    private byte[][] lines;
+    private DirtDriver.Job1_Extraction.Map parser;
+
+    @Setup
+    public void setup() {
+        List<byte[]> fixture = Fixture.lines();
+        lines = fixture.toArray(new byte[0][]);
+        parser = new DirtDriver.Job1_Extraction.Map();
+    }
+
+    /** One operation parses every fixture line. */
+    @Benchmark
+    public void parseLines(Blackhole bh) {
+        for (byte[] line : lines) {
+            DirtDriver.Sentence tokens = parser.parseLine(line, line.length);
+            bh.consume(tokens == null ? 0 : tokens.size());
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package com.dirt;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/** PorterStemmer.stem on the fixture's words, uncached and through the StemCache. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StemmerBenchmark {
+    private String[] words;
+    private DirtDriver.PorterStemmer stemmer;
+    private DirtDriver.StemCache cache;
+
+    @Setup
+    public void setup() {
+        words = Fixture.words().toArray(new String[0]);
+        stemmer = new DirtDriver.PorterStemmer();
+        cache = new DirtDriver.StemCache();
+    }
+
+    /** One operation stems every fixture word. */
+    @Benchmark
+    public void porterStem(Blackhole bh) {
+        for (String w : words)
+            bh.consume(stemmer.stem(w));
+    }
+
+    /** The same words through the LRU cache, which hits after the first pass. */
+    @Benchmark
+    public void cachedStem(Blackhole bh) {
+        for (String w : words)
+            bh.consume(cache.stem(w));
+    }
+}
@@ -1,5 +1,6 @@
 package com.dirt;
 
+import com.fasterxml.jackson.databind.JsonNode;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.conf.Configured;
 import org.apache.hadoop.fs.*;
@@ -8,11 +9,17 @@ import org.apache.hadoop.io.*;
 import org.apache.hadoop.mapreduce.*;
 import org.apache.hadoop.mapreduce.lib.input.*;
 import org.apache.hadoop.mapreduce.lib.output.*;
+import org.apache.hadoop.mapreduce.lib.partition.HashPartitioner;
+import org.apache.hadoop.mapreduce.lib.partition.TotalOrderPartitioner;
 import org.apache.hadoop.util.Tool;
 import org.apache.hadoop.util.ToolRunner;
 
 import java.io.*;
 import java.net.URI;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 
 public class DirtDriver extends Configured implements Tool {
@@ -23,277 +30,1326 @@ public class DirtDriver extends Configured implements Tool {
 
     // --- DATA STRUCTURES ---
 
-    public static class Token {
-        public String word, pos, dep;
-        public int head;
+    /**
+     * Maps short byte strings (POS tags, dependency labels) to small int
+     * codes. Lookups of a known string do not allocate.
+     */
+    public static class ByteInterner {
+        private int[] table = new int[64]; // code + 1, 0 = empty slot
+        private final List<byte[]> keys = new ArrayList<>();
+        private final List<String> names = new ArrayList<>();
 
-        public Token(String w, String p, String d, int h) {
-            this.word = w;
-            this.pos = p;
-            this.dep = d;
-            this.head = h;
+        public int intern(byte[] b, int start, int end) {
+            int h = WritableComparator.hashBytes(b, start, end - start);
+            int mask = table.length - 1;
+            for (int slot = h & mask;; slot = (slot + 1) & mask) {
+                int code = table[slot] - 1;
+                if (code < 0)
+                    return add(b, start, end, slot);
+                byte[] k = keys.get(code);
+                if (WritableComparator.compareBytes(k, 0, k.length, b, start, end - start) == 0)
+                    return code;
+            }
+        }
+
+        private int add(byte[] b, int start, int end, int slot) {
+            int code = keys.size();
+            keys.add(Arrays.copyOfRange(b, start, end));
+            try {
+                names.add(Text.decode(b, start, end - start));
+            } catch (CharacterCodingException e) {
+                throw new IllegalStateException(e); // cannot happen: Text decodes with REPLACE
+            }
+            table[slot] = code + 1;
+            if (keys.size() * 2 > table.length)
+                rehash();
+            return code;
         }
 
-        public boolean isNoun() {
-            return pos != null && pos.startsWith("N");
+        private void rehash() {
+            int[] old = table;
+            table = new int[old.length * 2];
+            int mask = table.length - 1;
+            for (int code : old) {
+                if (code == 0)
+                    continue;
+                byte[] k = keys.get(code - 1);
+                int slot = WritableComparator.hashBytes(k, k.length) & mask;
+                while (table[slot] != 0)
+                    slot = (slot + 1) & mask;
+                table[slot] = code;
+            }
         }
 
-        public boolean isVerb() {
-            return pos != null && pos.startsWith("V");
+        public String name(int code) {
+            return names.get(code);
         }
 
-        public boolean isPrep() {
-            return "IN".equals(pos) || "TO".equals(pos);
+        public int size() {
+            return keys.size();
         }
     }
 
-    public static class PathSlotKey implements WritableComparable<PathSlotKey> {
-        public Text path = new Text();
-        public Text slot = new Text();
-        public IntWritable type = new IntWritable(); // 0 = Margin, 1 = Triple
+    /**
+     * Reusable token buffer for one biarcs n-gram. Words are kept as byte
+     * offsets into the line and only decoded when a path needs them; POS and
+     * dependency labels are interned codes.
+     */
+    public static class Sentence {
+        private static final int NOUN = 1, VERB = 2, PREP = 4;
 
-        public PathSlotKey() {
+        private final ByteInterner posCodes = new ByteInterner();
+        private final ByteInterner depCodes = new ByteInterner();
+        private byte[] posFlags = new byte[0];
+
+        private byte[] bytes;
+        private int size = 0;
+        private int[] wordStart = new int[16];
+        private int[] wordEnd = new int[16];
+        private int[] pos = new int[16];
+        private int[] dep = new int[16];
+        private int[] head = new int[16];
+        private String[] words = new String[16];
+        private long count;
+
+        public void reset(byte[] line) {
+            bytes = line;
+            for (int i = 0; i < size; i++)
+                words[i] = null;
+            size = 0;
         }
 
-        public PathSlotKey(String p, String s, int t) {
-            path.set(p);
-            slot.set(s);
-            type.set(t);
+        /** Adds a token whose word, POS, dependency and head are the given byte ranges of the line. */
+        public void add(int wStart, int wEnd, int pStart, int pEnd, int dStart, int dEnd, int h) {
+            if (size == head.length)
+                grow();
+            wordStart[size] = wStart;
+            wordEnd[size] = wEnd;
+            pos[size] = posCodes.intern(bytes, pStart, pEnd);
+            dep[size] = depCodes.intern(bytes, dStart, dEnd);
+            head[size] = h;
+            size++;
         }
 
-        @Override
-        public void write(DataOutput out) throws IOException {
-            path.write(out);
-            slot.write(out);
-            type.write(out);
+        private void grow() {
+            int n = head.length * 2;
+            wordStart = Arrays.copyOf(wordStart, n);
+            wordEnd = Arrays.copyOf(wordEnd, n);
+            pos = Arrays.copyOf(pos, n);
+            dep = Arrays.copyOf(dep, n);
+            head = Arrays.copyOf(head, n);
+            words = Arrays.copyOf(words, n);
         }
 
-        @Override
-        public void readFields(DataInput in) throws IOException {
-            path.readFields(in);
-            slot.readFields(in);
-            type.readFields(in);
+        public int size() {
+            return size;
         }
 
-        @Override
-        public int compareTo(PathSlotKey o) {
-            int cmp = path.compareTo(o.path);
-            if (cmp != 0)
-                return cmp;
-            cmp = slot.compareTo(o.slot);
-            if (cmp != 0)
-                return cmp;
-            return type.compareTo(o.type);
+        /** The n-gram's count, the line field after it. */
+        public long count() {
+            return count;
+        }
+
+        public void setCount(long count) {
+            this.count = count;
+        }
+
+        public String word(int i) {
+            if (words[i] == null) {
+                try {
+                    words[i] = Text.decode(bytes, wordStart[i], wordEnd[i] - wordStart[i]);
+                } catch (CharacterCodingException e) {
+                    throw new IllegalStateException(e); // cannot happen: Text decodes with REPLACE
+                }
+            }
+            return words[i];
+        }
+
+        public String dep(int i) {
+            return depCodes.name(dep[i]);
+        }
+
+        public byte[] bytes() {
+            return bytes;
+        }
+
+        public int wordStart(int i) {
+            return wordStart[i];
+        }
+
+        public int wordEnd(int i) {
+            return wordEnd[i];
+        }
+
+        public int head(int i) {
+            return head[i];
+        }
+
+        public boolean isNoun(int i) {
+            return (posFlags(pos[i]) & NOUN) != 0;
+        }
+
+        public boolean isVerb(int i) {
+            return (posFlags(pos[i]) & VERB) != 0;
+        }
+
+        public boolean isPrep(int i) {
+            return (posFlags(pos[i]) & PREP) != 0;
+        }
+
+        private int posFlags(int code) {
+            if (code >= posFlags.length) {
+                int from = posFlags.length;
+                posFlags = Arrays.copyOf(posFlags, posCodes.size());
+                for (int c = from; c < posFlags.length; c++) {
+                    String p = posCodes.name(c);
+                    int f = 0;
+                    if (p.startsWith("N"))
+                        f |= NOUN;
+                    if (p.startsWith("V"))
+                        f |= VERB;
+                    if ("IN".equals(p) || "TO".equals(p))
+                        f |= PREP;
+                    posFlags[c] = (byte) f;
+                }
+            }
+            return posFlags[code];
         }
     }
 
-    public static class PathSlotGroupingComparator extends WritableComparator {
-        protected PathSlotGroupingComparator() {
-            super(PathSlotKey.class, true);
+    /**
+     * Dense integer encoding shared by every stage after the dictionary job.
+     * Slots are the two fixed ids below, paths and words get their id from
+     * the step1_5 dictionary; pairs of ids are packed into a single long.
+     */
+    public static class Ids {
+        public static final int SLOT_X = 0;
+        public static final int SLOT_Y = 1;
+
+        public static int slotId(String slot) {
+            if ("X".equals(slot))
+                return SLOT_X;
+            if ("Y".equals(slot))
+                return SLOT_Y;
+            return -1;
         }
 
-        @Override
-        public int compare(WritableComparable a, WritableComparable b) {
-            PathSlotKey k1 = (PathSlotKey) a;
-            PathSlotKey k2 = (PathSlotKey) b;
-            int cmp = k1.path.compareTo(k2.path);
-            if (cmp != 0)
-                return cmp;
-            return k1.slot.compareTo(k2.slot);
+        public static String slotName(int slot) {
+            return slot == SLOT_X ? "X" : "Y";
+        }
+
+        public static long pack(int hi, int lo) {
+            return ((long) hi << 32) | (lo & 0xFFFFFFFFL);
+        }
+
+        public static int high(long packed) {
+            return (int) (packed >>> 32);
+        }
+
+        public static int low(long packed) {
+            return (int) packed;
         }
     }
 
-    public static class PorterStemmer {
-        private char[] b;
-        private int i, i_end, j, k;
-        private static final int INC = 50;
+    public static class Dictionary {
+        /** Opens a SequenceFile that the distributed cache localized into the task directory. */
+        public static SequenceFile.Reader openLocal(Configuration conf, URI uri) throws IOException {
+            Path local = FileSystem.getLocal(conf).makeQualified(new Path(new Path(uri).getName()));
+            return new SequenceFile.Reader(conf, SequenceFile.Reader.file(local));
+        }
+    }
 
-        public PorterStemmer() {
-            b = new char[INC];
-            i = 0;
-            i_end = 0;
+    /**
+     * Sorted name table written by Job 1.5 and memory-mapped by Job 2. It is
+     * two files: {@code .names} holds the UTF-8 names back to back in byte
+     * order, and {@code .index} holds one fixed 24-byte record per name
+     * (long offset, long X count, long Y count). A name's position is its
+     * dense id, so one binary search over the mapped bytes gives the id and
+     * both slot margins without building a String or a map entry, and
+     * opening the table costs the same for ten words or ten million.
+     */
+    public static class NameTable {
+        public static final String NAMES = ".names";
+        public static final String INDEX = ".index";
+        private static final int RECORD = 24;
+
+        private final MappedFile names;
+        private final MappedFile index;
+        private byte[] scratch = new byte[256];
+        private final long namesLength;
+        private final int size;
+
+        private NameTable(File namesFile, File indexFile) throws IOException {
+            names = new MappedFile(namesFile);
+            index = new MappedFile(indexFile);
+            namesLength = names.length();
+            if (index.length() % RECORD != 0 || index.length() / RECORD > Integer.MAX_VALUE)
+                throw new IOException("Corrupt name table index: " + indexFile);
+            size = (int) (index.length() / RECORD);
         }
 
-        public String stem(String s) {
-            if (s == null || s.length() == 0) return "";
-            
-            // Reset buffer
-            i = 0;
-            i_end = 0;
-            
-            // Add string to buffer
-            char[] chars = s.toCharArray();
-            for (char c : chars) {
-                add(c);
-            }
-            
-            stem();
-            return toString();
+        /** Maps a table whose two files the distributed cache localized into the task directory. */
+        public static NameTable openLocal(URI namesUri) throws IOException {
+            return open(new File(new Path(namesUri).getName()));
         }
 
-        public void add(char ch) {
-            if (i == b.length) {
-                char[] new_b = new char[i + INC];
-                for (int c = 0; c < i; c++) new_b[c] = b[c];
-                b = new_b;
+        /** Maps a table given the local path of its names file. */
+        public static NameTable open(File namesFile) throws IOException {
+            String name = namesFile.getPath();
+            String base = name.substring(0, name.length() - NAMES.length());
+            return new NameTable(namesFile, new File(base + INDEX));
+        }
+
+        public int size() {
+            return size;
+        }
+
+        /** Returns the id of the given UTF-8 name, or -1 if it is not in the table. */
+        public int find(byte[] b, int off, int len) {
+            int lo = 0, hi = size - 1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                int c = compare(mid, b, off, len);
+                if (c < 0)
+                    lo = mid + 1;
+                else if (c > 0)
+                    hi = mid - 1;
+                else
+                    return mid;
             }
-            b[i++] = ch;
+            return -1;
         }
 
-        public String toString() {
-            return new String(b, 0, i_end);
+        public int find(Text t) {
+            return find(t.getBytes(), 0, t.getLength());
         }
 
-        private final boolean cons(int i) {
-            switch (b[i]) {
-                case 'a': case 'e': case 'i': case 'o': case 'u': return false;
-                case 'y': return (i == 0) ? true : !cons(i - 1);
-                default: return true;
+        /** Copies the name with the given id into out. */
+        public void name(int id, Text out) {
+            long s = start(id);
+            int n = (int) (end(id) - s);
+            if (scratch.length < n)
+                scratch = new byte[Math.max(n, scratch.length * 2)];
+            for (int k = 0; k < n; k++)
+                scratch[k] = names.get(s + k);
+            out.set(scratch, 0, n);
+        }
+
+        /** Count of the name in the given slot; zero for a slot it never filled. */
+        public long count(int id, int slot) {
+            return index.getLong((long) id * RECORD + (slot == Ids.SLOT_X ? 8 : 16));
+        }
+
+        private long start(int id) {
+            return index.getLong((long) id * RECORD);
+        }
+
+        private long end(int id) {
+            return id + 1 < size ? start(id + 1) : namesLength;
+        }
+
+        /** Compares entry id with b[off, off + len) the way Text's comparator does. */
+        private int compare(int id, byte[] b, int off, int len) {
+            long s = start(id);
+            int n = (int) (end(id) - s);
+            int m = Math.min(n, len);
+            for (int k = 0; k < m; k++) {
+                int d = (names.get(s + k) & 0xff) - (b[off + k] & 0xff);
+                if (d != 0)
+                    return d;
             }
+            return n - len;
         }
 
-        private final int m() {
-            int n = 0;
-            int i = 0;
-            while (true) {
-                if (i > j) return n;
-                if (!cons(i)) break;
-                i++;
+        /**
+         * Streams a table to the two files. Names must arrive in Text byte
+         * order, which is the order Job 1.5's reducer sees its keys in.
+         */
+        public static class Writer implements java.io.Closeable {
+            private final DataOutputStream names;
+            private final DataOutputStream index;
+            private long offset = 0;
+            private int count = 0;
+
+            public Writer(Configuration conf, Path base) throws IOException {
+                FileSystem fs = base.getFileSystem(conf);
+                names = new DataOutputStream(new BufferedOutputStream(fs.create(base.suffix(NAMES))));
+                index = new DataOutputStream(new BufferedOutputStream(fs.create(base.suffix(INDEX))));
             }
-            i++;
-            while (true) {
-                while (true) {
-                    if (i > j) return n;
-                    if (cons(i)) break;
-                    i++;
-                }
-                i++;
-                n++;
-                while (true) {
-                    if (i > j) return n;
-                    if (!cons(i)) break;
-                    i++;
+
+            public void add(byte[] b, int off, int len, long x, long y) throws IOException {
+                names.write(b, off, len);
+                index.writeLong(offset);
+                index.writeLong(x);
+                index.writeLong(y);
+                offset += len;
+                count++;
+            }
+
+            public int count() {
+                return count;
+            }
+
+            @Override
+            public void close() throws IOException {
+                names.close();
+                index.close();
+            }
+        }
+    }
+
+    /**
+     * The name table parts written by Job 1.5's reducers, read as one
+     * table. Each reducer receives a contiguous range of the sorted names,
+     * so a name's id is its position in its part plus the sizes of the
+     * parts before it, the same id a single reducer would have assigned.
+     */
+    public static class NameTables {
+        private final NameTable[] parts;
+        private final int[] offsets;
+        private final Text scratch = new Text();
+
+        /** parts: the non-empty parts in partition order. */
+        private NameTables(List<NameTable> parts) {
+            this.parts = parts.toArray(new NameTable[0]);
+            offsets = new int[this.parts.length + 1];
+            for (int i = 0; i < this.parts.length; i++)
+                offsets[i + 1] = offsets[i] + this.parts[i].size();
+        }
+
+        /** Maps the parts of the table with the given prefix that the distributed cache localized. */
+        public static NameTables openLocal(URI[] cacheFiles, String prefix) throws IOException {
+            List<String> names = new ArrayList<>();
+            if (cacheFiles != null)
+                for (URI uri : cacheFiles) {
+                    String name = new Path(uri).getName();
+                    if (name.startsWith(prefix) && name.endsWith(NameTable.NAMES))
+                        names.add(name);
                 }
-                i++;
+            // Part files are named prefix-r-NNNNN, so name order is partition order
+            Collections.sort(names);
+            List<NameTable> parts = new ArrayList<>();
+            for (String name : names) {
+                NameTable part = NameTable.open(new File(name));
+                if (part.size() > 0)
+                    parts.add(part);
             }
+            return new NameTables(parts);
         }
 
-        private final boolean vowelinstem() {
-            int i;
-            for (i = 0; i <= j; i++)
-                if (!cons(i)) return true;
-            return false;
+        public int size() {
+            return offsets[parts.length];
         }
 
-        private final boolean doublec(int j) {
-            if (j < 1) return false;
-            if (b[j] != b[j - 1]) return false;
-            return cons(j);
+        /** Returns the id of the given UTF-8 name, or -1 if it is not in the table. */
+        public int find(byte[] b, int off, int len) {
+            // The last part whose first name is not after b
+            int lo = 0, hi = parts.length - 1, part = -1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                if (parts[mid].compare(0, b, off, len) <= 0) {
+                    part = mid;
+                    lo = mid + 1;
+                } else {
+                    hi = mid - 1;
+                }
+            }
+            if (part < 0)
+                return -1;
+            int id = parts[part].find(b, off, len);
+            return id < 0 ? -1 : offsets[part] + id;
         }
 
-        private final boolean cvc(int i) {
-            if (i < 2 || !cons(i) || cons(i - 1) || !cons(i - 2)) return false;
-            int ch = b[i];
-            if (ch == 'w' || ch == 'x' || ch == 'y') return false;
-            return true;
+        public int find(Text t) {
+            return find(t.getBytes(), 0, t.getLength());
         }
 
-        private final boolean ends(String s) {
-            int l = s.length();
-            int o = k - l + 1;
-            if (o < 0) return false;
-            for (int i = 0; i < l; i++)
-                if (b[o + i] != s.charAt(i)) return false;
-            j = k - l;
-            return true;
+        /** Copies the name with the given id into out. */
+        public void name(int id, Text out) {
+            int part = partOf(id);
+            parts[part].name(id - offsets[part], out);
         }
 
-        private final void setto(String s) {
-            int l = s.length();
-            int o = j + 1;
-            for (int i = 0; i < l; i++)
-                b[o + i] = s.charAt(i);
-            k = j + l;
+        public String name(int id) {
+            name(id, scratch);
+            return scratch.toString();
         }
 
-        private final void r(String s) {
-            if (m() > 0) setto(s);
+        /** Count of the name in the given slot; zero for a slot it never filled. */
+        public long count(int id, int slot) {
+            int part = partOf(id);
+            return parts[part].count(id - offsets[part], slot);
         }
 
-        private final void step1() {
-            if (b[k] == 's') {
-                if (ends("sses")) k -= 2;
-                else if (ends("ies")) setto("i");
-                else if (b[k - 1] != 's') k--;
+        private int partOf(int id) {
+            int lo = 0, hi = parts.length - 1;
+            while (lo < hi) {
+                int mid = (lo + hi + 1) >>> 1;
+                if (offsets[mid] <= id)
+                    lo = mid;
+                else
+                    hi = mid - 1;
             }
-            if (ends("eed")) {
-                if (m() > 0) k--;
-            } else if ((ends("ed") || ends("ing")) && vowelinstem()) {
-                k = j;
-                if (ends("at")) setto("ate");
-                else if (ends("bl")) setto("ble");
-                else if (ends("iz")) setto("ize");
-                else if (doublec(k)) {
-                    k--;
-                    int ch = b[k];
-                    if (ch == 'l' || ch == 's' || ch == 'z') k++;
-                } else if (m() == 1 && cvc(k)) setto("e");
+            return lo;
+        }
+    }
+
+    /**
+     * Read-only mapping of a local file of any length, in 1 GB chunks.
+     * Longs and doubles are read at 8-byte aligned positions and so never
+     * straddle a chunk boundary.
+     */
+    public static class MappedFile {
+        private static final int CHUNK_BITS = 30;
+        private static final long CHUNK_MASK = (1L << CHUNK_BITS) - 1;
+
+        private final MappedByteBuffer[] chunks;
+        private final long length;
+
+        public MappedFile(File file) throws IOException {
+            try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+                 FileChannel ch = raf.getChannel()) {
+                length = ch.size();
+                int n = (int) ((length + CHUNK_MASK) >>> CHUNK_BITS);
+                chunks = new MappedByteBuffer[n];
+                for (int c = 0; c < n; c++) {
+                    long pos = (long) c << CHUNK_BITS;
+                    chunks[c] = ch.map(FileChannel.MapMode.READ_ONLY, pos,
+                            Math.min(1L << CHUNK_BITS, length - pos));
+                }
             }
         }
 
-        private final void step2() {
-            if (ends("y") && vowelinstem()) b[k] = 'i';
+        public long length() {
+            return length;
         }
 
-        private final void step3() {
-            if (k == 0) return;
-            switch (b[k - 1]) {
-                case 'a':
-                    if (ends("ational")) { r("ate"); break; }
-                    if (ends("tional")) { r("tion"); break; }
-                    break;
-                case 'c':
-                    if (ends("enci")) { r("ence"); break; }
-                    if (ends("anci")) { r("ance"); break; }
-                    break;
-                case 'e':
-                    if (ends("izer")) { r("ize"); break; }
-                    break;
-                case 'l':
-                    if (ends("bli")) { r("ble"); break; }
-                    if (ends("alli")) { r("al"); break; }
-                    if (ends("entli")) { r("ent"); break; }
-                    if (ends("eli")) { r("e"); break; }
-                    if (ends("ousli")) { r("ous"); break; }
-                    break;
-                case 'o':
-                    if (ends("ization")) { r("ize"); break; }
-                    if (ends("ation")) { r("ate"); break; }
-                    if (ends("ator")) { r("ate"); break; }
-                    break;
-                case 's':
-                    if (ends("alism")) { r("al"); break; }
-                    if (ends("iveness")) { r("ive"); break; }
-                    if (ends("fulness")) { r("ful"); break; }
-                    if (ends("ousness")) { r("ous"); break; }
-                    break;
-                case 't':
-                    if (ends("aliti")) { r("al"); break; }
-                    if (ends("iviti")) { r("ive"); break; }
-                    if (ends("biliti")) { r("ble"); break; }
-                    break;
-                case 'g':
-                    if (ends("logi")) { r("log"); break; }
-            }
+        public byte get(long pos) {
+            return chunks[(int) (pos >>> CHUNK_BITS)].get((int) (pos & CHUNK_MASK));
         }
 
-        private final void step4() {
-            switch (b[k]) {
-                case 'e':
-                    if (ends("icate")) { r("ic"); break; }
-                    if (ends("ative")) { r(""); break; }
-                    if (ends("alize")) { r("al"); break; }
-                    break;
+        public long getLong(long pos) {
+            return chunks[(int) (pos >>> CHUNK_BITS)].getLong((int) (pos & CHUNK_MASK));
+        }
+
+        public double getDouble(long pos) {
+            return chunks[(int) (pos >>> CHUNK_BITS)].getDouble((int) (pos & CHUNK_MASK));
+        }
+    }
+
+    public static class PathSlotKey implements WritableComparable<PathSlotKey> {
+        /** Serialized size: int path, byte slot, byte type, int word. */
+        public static final int SIZE = 10;
+
+        public int path;
+        public int slot;
+        public int type; // 0 = Margin, 1 = Triple
+        public int word; // 0 for a margin
+
+        public PathSlotKey() {
+        }
+
+        public PathSlotKey(int p, int s, int t, int w) {
+            set(p, s, t, w);
+        }
+
+        public void set(int p, int s, int t, int w) {
+            path = p;
+            slot = s;
+            type = t;
+            word = w;
+        }
+
+        @Override
+        public void write(DataOutput out) throws IOException {
+            out.writeInt(path);
+            out.writeByte(slot);
+            out.writeByte(type);
+            out.writeInt(word);
+        }
+
+        @Override
+        public void readFields(DataInput in) throws IOException {
+            path = in.readInt();
+            slot = in.readByte();
+            type = in.readByte();
+            word = in.readInt();
+        }
+
+        @Override
+        public int compareTo(PathSlotKey o) {
+            int cmp = Integer.compare(path, o.path);
+            if (cmp != 0)
+                return cmp;
+            cmp = Integer.compare(slot, o.slot);
+            if (cmp != 0)
+                return cmp;
+            cmp = Integer.compare(type, o.type);
+            if (cmp != 0)
+                return cmp;
+            return Integer.compare(word, o.word);
+        }
+
+        /** Hashes (path, slot) only, so a margin and its triples share a partition. */
+        @Override
+        public int hashCode() {
+            return path * 31 + slot;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof PathSlotKey && compareTo((PathSlotKey) o) == 0;
+        }
+
+        /**
+         * Sort comparator on the serialized bytes: (path, slot, type, word).
+         * Sorting the triples by word fixes the order in which Job 2 sums
+         * a group's MI, so SumMI does not depend on the shuffle.
+         */
+        public static class Comparator extends WritableComparator {
+            public Comparator() {
+                super(PathSlotKey.class);
+            }
+
+            @Override
+            public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
+                int cmp = Integer.compare(readInt(b1, s1), readInt(b2, s2));
+                if (cmp != 0)
+                    return cmp;
+                cmp = Byte.compare(b1[s1 + 4], b2[s2 + 4]);
+                if (cmp != 0)
+                    return cmp;
+                cmp = Byte.compare(b1[s1 + 5], b2[s2 + 5]);
+                if (cmp != 0)
+                    return cmp;
+                return Integer.compare(readInt(b1, s1 + 6), readInt(b2, s2 + 6));
+            }
+        }
+
+        static {
+            WritableComparator.define(PathSlotKey.class, new Comparator());
+        }
+    }
+
+    /** Groups on (path, slot) so the type=0 margin and the type=1 triples reach one reduce call. */
+    public static class PathSlotGroupingComparator extends WritableComparator {
+        protected PathSlotGroupingComparator() {
+            super(PathSlotKey.class, true);
+        }
+
+        @Override
+        public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
+            int cmp = Integer.compare(readInt(b1, s1), readInt(b2, s2));
+            if (cmp != 0)
+                return cmp;
+            return Byte.compare(b1[s1 + 4], b2[s2 + 4]);
+        }
+
+        @Override
+        public int compare(WritableComparable a, WritableComparable b) {
+            PathSlotKey k1 = (PathSlotKey) a;
+            PathSlotKey k2 = (PathSlotKey) b;
+            int cmp = Integer.compare(k1.path, k2.path);
+            if (cmp != 0)
+                return cmp;
+            return Integer.compare(k1.slot, k2.slot);
+        }
+    }
+
+    /** Partitions on (path, slot), consistent with the grouping comparator. */
+    public static class PathSlotPartitioner<V> extends Partitioner<PathSlotKey, V> {
+        @Override
+        public int getPartition(PathSlotKey key, V value, int numPartitions) {
+            return (key.hashCode() & Integer.MAX_VALUE) % numPartitions;
+        }
+    }
+
+    /**
+     * Job 3 shuffle key: a block of path pairs and one feature of one of
+     * its paths. Sorting on (block, slot, word, path) brings all the
+     * block's paths that have a feature together, so the reducer scores
+     * the block in a single pass.
+     */
+    public static class BlockFeatureKey implements WritableComparable<BlockFeatureKey> {
+        /** Serialized size: int block, byte slot, int word, int path. */
+        public static final int SIZE = 13;
+
+        public int block;
+        public int slot;
+        public int word;
+        public int path;
+
+        public void set(int b, int s, int w, int p) {
+            block = b;
+            slot = s;
+            word = w;
+            path = p;
+        }
+
+        @Override
+        public void write(DataOutput out) throws IOException {
+            out.writeInt(block);
+            out.writeByte(slot);
+            out.writeInt(word);
+            out.writeInt(path);
+        }
+
+        @Override
+        public void readFields(DataInput in) throws IOException {
+            block = in.readInt();
+            slot = in.readByte();
+            word = in.readInt();
+            path = in.readInt();
+        }
+
+        @Override
+        public int compareTo(BlockFeatureKey o) {
+            int cmp = Integer.compare(block, o.block);
+            if (cmp != 0)
+                return cmp;
+            cmp = Integer.compare(slot, o.slot);
+            if (cmp != 0)
+                return cmp;
+            cmp = Integer.compare(word, o.word);
+            if (cmp != 0)
+                return cmp;
+            return Integer.compare(path, o.path);
+        }
+
+        /** The block id itself: blocks are numbered for block % reducers. */
+        @Override
+        public int hashCode() {
+            return block;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof BlockFeatureKey && compareTo((BlockFeatureKey) o) == 0;
+        }
+
+        @Override
+        public String toString() {
+            return block + "\t" + Ids.slotName(slot) + "\t" + word + "\t" + path;
+        }
+
+        /** Sort comparator on the serialized bytes: (block, slot, word, path). */
+        public static class Comparator extends WritableComparator {
+            public Comparator() {
+                super(BlockFeatureKey.class);
+            }
+
+            @Override
+            public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
+                int cmp = Integer.compare(readInt(b1, s1), readInt(b2, s2));
+                if (cmp != 0)
+                    return cmp;
+                cmp = Byte.compare(b1[s1 + 4], b2[s2 + 4]);
+                if (cmp != 0)
+                    return cmp;
+                cmp = Integer.compare(readInt(b1, s1 + 5), readInt(b2, s2 + 5));
+                if (cmp != 0)
+                    return cmp;
+                return Integer.compare(readInt(b1, s1 + 9), readInt(b2, s2 + 9));
+            }
+        }
+
+        static {
+            WritableComparator.define(BlockFeatureKey.class, new Comparator());
+        }
+    }
+
+    /** Groups on the block so all features of its paths reach one reduce call. */
+    public static class BlockGroupingComparator extends WritableComparator {
+        protected BlockGroupingComparator() {
+            super(BlockFeatureKey.class, true);
+        }
+
+        @Override
+        public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
+            return Integer.compare(readInt(b1, s1), readInt(b2, s2));
+        }
+
+        @Override
+        public int compare(WritableComparable a, WritableComparable b) {
+            return Integer.compare(((BlockFeatureKey) a).block, ((BlockFeatureKey) b).block);
+        }
+    }
+
+    /** Sends block b to reducer b % reducers, matching how PairBlocks numbers them. */
+    public static class BlockPartitioner<V> extends Partitioner<BlockFeatureKey, V> {
+        @Override
+        public int getPartition(BlockFeatureKey key, V value, int numPartitions) {
+            return (key.hashCode() & Integer.MAX_VALUE) % numPartitions;
+        }
+    }
+
+    /**
+     * Job 1 record key. The type byte replaces the old "TRIPLE"/"PS_MARGIN"/...
+     * string prefixes; unused fields stay empty.
+     */
+    public static class ExtractionKey implements WritableComparable<ExtractionKey> {
+        public static final byte TRIPLE = 0;
+        public static final byte PS_MARGIN = 1;
+        public static final byte SW_MARGIN = 2;
+        public static final byte GLOBAL = 3;
+
+        public byte type;
+        public Text path = new Text();
+        public byte slot;
+        public Text word = new Text();
+
+        public void set(byte t, String p, int s, String w) {
+            type = t;
+            path.set(p);
+            slot = (byte) s;
+            word.set(w);
+        }
+
+        public void set(ExtractionKey o) {
+            type = o.type;
+            path.set(o.path);
+            slot = o.slot;
+            word.set(o.word);
+        }
+
+        @Override
+        public void write(DataOutput out) throws IOException {
+            out.writeByte(type);
+            path.write(out);
+            out.writeByte(slot);
+            word.write(out);
+        }
+
+        @Override
+        public void readFields(DataInput in) throws IOException {
+            type = in.readByte();
+            path.readFields(in);
+            slot = in.readByte();
+            word.readFields(in);
+        }
+
+        @Override
+        public int compareTo(ExtractionKey o) {
+            int cmp = Byte.compare(type, o.type);
+            if (cmp != 0)
+                return cmp;
+            cmp = path.compareTo(o.path);
+            if (cmp != 0)
+                return cmp;
+            cmp = Byte.compare(slot, o.slot);
+            if (cmp != 0)
+                return cmp;
+            return word.compareTo(o.word);
+        }
+
+        @Override
+        public int hashCode() {
+            return ((type * 31 + path.hashCode()) * 31 + slot) * 31 + word.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof ExtractionKey && compareTo((ExtractionKey) o) == 0;
+        }
+
+        @Override
+        public String toString() {
+            switch (type) {
+                case TRIPLE: return "TRIPLE\t" + path + "\t" + Ids.slotName(slot) + "\t" + word;
+                case PS_MARGIN: return "PS_MARGIN\t" + path + "\t" + Ids.slotName(slot);
+                case SW_MARGIN: return "SW_MARGIN\t" + Ids.slotName(slot) + "\t" + word;
+                default: return "GLOBAL";
+            }
+        }
+    }
+
+    /** Job 2 map output value: a triple's count and Count(s,w), or a Count(p,s) margin. The word id is in the key. */
+    public static class TripleCount implements Writable {
+        public long count;
+        public long wordMargin;
+
+        public void set(long c, long m) {
+            count = c;
+            wordMargin = m;
+        }
+
+        @Override
+        public void write(DataOutput out) throws IOException {
+            WritableUtils.writeVLong(out, count);
+            WritableUtils.writeVLong(out, wordMargin);
+        }
+
+        @Override
+        public void readFields(DataInput in) throws IOException {
+            count = WritableUtils.readVLong(in);
+            wordMargin = WritableUtils.readVLong(in);
+        }
+
+        @Override
+        public String toString() {
+            return count + "\t" + wordMargin;
+        }
+    }
+
+    /** One feature of a path vector: MI(path, slot, word). Output of Job 2. */
+    public static class FeatureMI implements Writable {
+        public int path;
+        public int slot;
+        public int word;
+        public double mi;
+
+        public void set(int p, int s, int w, double m) {
+            path = p;
+            slot = s;
+            word = w;
+            mi = m;
+        }
+
+        @Override
+        public void write(DataOutput out) throws IOException {
+            WritableUtils.writeVInt(out, path);
+            out.writeByte(slot);
+            WritableUtils.writeVInt(out, word);
+            out.writeDouble(mi);
+        }
+
+        @Override
+        public void readFields(DataInput in) throws IOException {
+            path = WritableUtils.readVInt(in);
+            slot = in.readByte();
+            word = WritableUtils.readVInt(in);
+            mi = in.readDouble();
+        }
+
+        @Override
+        public String toString() {
+            return path + "\t" + slot + "\t" + word + "\t" + mi;
+        }
+    }
+
+    /**
+     * All features of one path, sorted by (slot, word), with the MI sum of
+     * each slot. Value of the vector store.
+     */
+    public static class PathVector implements Writable {
+        public int size;
+        public long[] features = new long[16]; // Ids.pack(slot, word)
+        public double[] mis = new double[16];
+        public double sumX;
+        public double sumY;
+
+        public void clear() {
+            size = 0;
+            sumX = 0;
+            sumY = 0;
+        }
+
+        /** Copies o into this vector, e.g. to keep a value that Hadoop is about to reuse. */
+        public void set(PathVector o) {
+            if (features.length < o.size) {
+                features = new long[o.size];
+                mis = new double[o.size];
+            }
+            System.arraycopy(o.features, 0, features, 0, o.size);
+            System.arraycopy(o.mis, 0, mis, 0, o.size);
+            size = o.size;
+            sumX = o.sumX;
+            sumY = o.sumY;
+        }
+
+        public void add(int slot, int word, double mi) {
+            if (size == features.length) {
+                features = Arrays.copyOf(features, size * 2);
+                mis = Arrays.copyOf(mis, size * 2);
+            }
+            features[size] = Ids.pack(slot, word);
+            mis[size] = mi;
+            size++;
+        }
+
+        /** Sorts the features and recomputes the slot sums in that order. */
+        public void sort() {
+            Integer[] order = new Integer[size];
+            for (int i = 0; i < size; i++)
+                order[i] = i;
+            long[] f = features;
+            Arrays.sort(order, (a, b) -> Long.compare(f[a], f[b]));
+            long[] sortedFeatures = new long[Math.max(16, size)];
+            double[] sortedMIs = new double[sortedFeatures.length];
+            sumX = 0;
+            sumY = 0;
+            for (int i = 0; i < size; i++) {
+                sortedFeatures[i] = features[order[i]];
+                sortedMIs[i] = mis[order[i]];
+                if (Ids.high(sortedFeatures[i]) == Ids.SLOT_X)
+                    sumX += sortedMIs[i];
+                else
+                    sumY += sortedMIs[i];
+            }
+            features = sortedFeatures;
+            mis = sortedMIs;
+        }
+
+        /** Lin similarity of two sorted vectors, by a linear merge of their features. */
+        public static double similarity(PathVector a, PathVector b) {
+            double numX = 0, numY = 0;
+            int i = 0, j = 0;
+            while (i < a.size && j < b.size) {
+                int cmp = Long.compare(a.features[i], b.features[j]);
+                if (cmp < 0) {
+                    i++;
+                } else if (cmp > 0) {
+                    j++;
+                } else {
+                    if (Ids.high(a.features[i]) == Ids.SLOT_X)
+                        numX += a.mis[i] + b.mis[j];
+                    else
+                        numY += a.mis[i] + b.mis[j];
+                    i++;
+                    j++;
+                }
+            }
+            return Job4_FinalSim.similarity(numX, numY, a.sumX, a.sumY, b.sumX, b.sumY);
+        }
+
+        @Override
+        public void write(DataOutput out) throws IOException {
+            WritableUtils.writeVInt(out, size);
+            for (int i = 0; i < size; i++) {
+                out.writeByte(Ids.high(features[i]));
+                WritableUtils.writeVInt(out, Ids.low(features[i]));
+                out.writeDouble(mis[i]);
+            }
+            out.writeDouble(sumX);
+            out.writeDouble(sumY);
+        }
+
+        @Override
+        public void readFields(DataInput in) throws IOException {
+            size = WritableUtils.readVInt(in);
+            if (features.length < size) {
+                features = new long[size];
+                mis = new double[size];
+            }
+            for (int i = 0; i < size; i++) {
+                int slot = in.readByte();
+                features[i] = Ids.pack(slot, WritableUtils.readVInt(in));
+                mis[i] = in.readDouble();
+            }
+            sumX = in.readDouble();
+            sumY = in.readDouble();
+        }
+
+        @Override
+        public String toString() {
+            return size + "\t" + sumX + "\t" + sumY;
+        }
+    }
+
+    /** Overlap numerators of one path pair. Output of Job 3. */
+    public static class PairNumerator implements Writable {
+        public int path1;
+        public int path2;
+        public double numX;
+        public double numY;
+
+        public void set(int p1, int p2, double x, double y) {
+            path1 = p1;
+            path2 = p2;
+            numX = x;
+            numY = y;
+        }
+
+        @Override
+        public void write(DataOutput out) throws IOException {
+            WritableUtils.writeVInt(out, path1);
+            WritableUtils.writeVInt(out, path2);
+            out.writeDouble(numX);
+            out.writeDouble(numY);
+        }
+
+        @Override
+        public void readFields(DataInput in) throws IOException {
+            path1 = WritableUtils.readVInt(in);
+            path2 = WritableUtils.readVInt(in);
+            numX = in.readDouble();
+            numY = in.readDouble();
+        }
+
+        @Override
+        public String toString() {
+            return path1 + "\t" + path2 + "\t" + numX + "\t" + numY;
+        }
+    }
+
+    /** A neighbour of a path and their similarity. Value of Job 5. */
+    public static class ScoredPath implements Writable {
+        public int path;
+        public double score;
+
+        public void set(int p, double sim) {
+            path = p;
+            score = sim;
+        }
+
+        @Override
+        public void write(DataOutput out) throws IOException {
+            WritableUtils.writeVInt(out, path);
+            out.writeDouble(score);
+        }
+
+        @Override
+        public void readFields(DataInput in) throws IOException {
+            path = WritableUtils.readVInt(in);
+            score = in.readDouble();
+        }
+
+        @Override
+        public String toString() {
+            return path + "\t" + score;
+        }
+    }
+
+    /** Counts of one path or word per slot. Job 1.5 shuffle value. */
+    public static class SlotCounts implements Writable {
+        public long x;
+        public long y;
+
+        public void set(int slot, long count) {
+            x = slot == Ids.SLOT_X ? count : 0;
+            y = slot == Ids.SLOT_X ? 0 : count;
+        }
+
+        public void add(SlotCounts o) {
+            x += o.x;
+            y += o.y;
+        }
+
+        public void clear() {
+            x = 0;
+            y = 0;
+        }
+
+        @Override
+        public void write(DataOutput out) throws IOException {
+            WritableUtils.writeVLong(out, x);
+            WritableUtils.writeVLong(out, y);
+        }
+
+        @Override
+        public void readFields(DataInput in) throws IOException {
+            x = WritableUtils.readVLong(in);
+            y = WritableUtils.readVLong(in);
+        }
+
+        @Override
+        public String toString() {
+            return x + "\t" + y;
+        }
+    }
+
+    public static class PorterStemmer {
+        private char[] b;
+        private int i, i_end, j, k;
+        private static final int INC = 50;
+
+        public PorterStemmer() {
+            b = new char[INC];
+            i = 0;
+            i_end = 0;
+        }
+
+        public String stem(String s) {
+            if (s == null || s.length() == 0) return "";
+            
+            // Reset buffer
+            i = 0;
+            i_end = 0;
+            
+            // Add string to buffer
+            for (int c = 0; c < s.length(); c++) {
+                add(s.charAt(c));
+            }
+            
+            stem();
+            return toString();
+        }
+
+        /** Same as stem(String) for chars[off, off + len), without building the input String. */
+        public String stem(char[] chars, int off, int len) {
+            if (len == 0) return "";
+            i = 0;
+            i_end = 0;
+            for (int c = off; c < off + len; c++) {
+                add(chars[c]);
+            }
+            stem();
+            return toString();
+        }
+
+        public void add(char ch) {
+            if (i == b.length) {
+                char[] new_b = new char[i + INC];
+                for (int c = 0; c < i; c++) new_b[c] = b[c];
+                b = new_b;
+            }
+            b[i++] = ch;
+        }
+
+        public String toString() {
+            return new String(b, 0, i_end);
+        }
+
+        private final boolean cons(int i) {
+            switch (b[i]) {
+                case 'a': case 'e': case 'i': case 'o': case 'u': return false;
+                case 'y': return (i == 0) ? true : !cons(i - 1);
+                default: return true;
+            }
+        }
+
+        private final int m() {
+            int n = 0;
+            int i = 0;
+            while (true) {
+                if (i > j) return n;
+                if (!cons(i)) break;
+                i++;
+            }
+            i++;
+            while (true) {
+                while (true) {
+                    if (i > j) return n;
+                    if (cons(i)) break;
+                    i++;
+                }
+                i++;
+                n++;
+                while (true) {
+                    if (i > j) return n;
+                    if (!cons(i)) break;
+                    i++;
+                }
+                i++;
+            }
+        }
+
+        private final boolean vowelinstem() {
+            int i;
+            for (i = 0; i <= j; i++)
+                if (!cons(i)) return true;
+            return false;
+        }
+
+        private final boolean doublec(int j) {
+            if (j < 1) return false;
+            if (b[j] != b[j - 1]) return false;
+            return cons(j);
+        }
+
+        private final boolean cvc(int i) {
+            if (i < 2 || !cons(i) || cons(i - 1) || !cons(i - 2)) return false;
+            int ch = b[i];
+            if (ch == 'w' || ch == 'x' || ch == 'y') return false;
+            return true;
+        }
+
+        private final boolean ends(String s) {
+            int l = s.length();
+            int o = k - l + 1;
+            if (o < 0) return false;
+            for (int i = 0; i < l; i++)
+                if (b[o + i] != s.charAt(i)) return false;
+            j = k - l;
+            return true;
+        }
+
+        private final void setto(String s) {
+            int l = s.length();
+            int o = j + 1;
+            for (int i = 0; i < l; i++)
+                b[o + i] = s.charAt(i);
+            k = j + l;
+        }
+
+        private final void r(String s) {
+            if (m() > 0) setto(s);
+        }
+
+        private final void step1() {
+            if (b[k] == 's') {
+                if (ends("sses")) k -= 2;
+                else if (ends("ies")) setto("i");
+                else if (b[k - 1] != 's') k--;
+            }
+            if (ends("eed")) {
+                if (m() > 0) k--;
+            } else if ((ends("ed") || ends("ing")) && vowelinstem()) {
+                k = j;
+                if (ends("at")) setto("ate");
+                else if (ends("bl")) setto("ble");
+                else if (ends("iz")) setto("ize");
+                else if (doublec(k)) {
+                    k--;
+                    int ch = b[k];
+                    if (ch == 'l' || ch == 's' || ch == 'z') k++;
+                } else if (m() == 1 && cvc(k)) setto("e");
+            }
+        }
+
+        private final void step2() {
+            if (ends("y") && vowelinstem()) b[k] = 'i';
+        }
+
+        private final void step3() {
+            if (k == 0) return;
+            switch (b[k - 1]) {
+                case 'a':
+                    if (ends("ational")) { r("ate"); break; }
+                    if (ends("tional")) { r("tion"); break; }
+                    break;
+                case 'c':
+                    if (ends("enci")) { r("ence"); break; }
+                    if (ends("anci")) { r("ance"); break; }
+                    break;
+                case 'e':
+                    if (ends("izer")) { r("ize"); break; }
+                    break;
+                case 'l':
+                    if (ends("bli")) { r("ble"); break; }
+                    if (ends("alli")) { r("al"); break; }
+                    if (ends("entli")) { r("ent"); break; }
+                    if (ends("eli")) { r("e"); break; }
+                    if (ends("ousli")) { r("ous"); break; }
+                    break;
+                case 'o':
+                    if (ends("ization")) { r("ize"); break; }
+                    if (ends("ation")) { r("ate"); break; }
+                    if (ends("ator")) { r("ate"); break; }
+                    break;
+                case 's':
+                    if (ends("alism")) { r("al"); break; }
+                    if (ends("iveness")) { r("ive"); break; }
+                    if (ends("fulness")) { r("ful"); break; }
+                    if (ends("ousness")) { r("ous"); break; }
+                    break;
+                case 't':
+                    if (ends("aliti")) { r("al"); break; }
+                    if (ends("iviti")) { r("ive"); break; }
+                    if (ends("biliti")) { r("ble"); break; }
+                    break;
+                case 'g':
+                    if (ends("logi")) { r("log"); break; }
+            }
+        }
+
+        private final void step4() {
+            switch (b[k]) {
+                case 'e':
+                    if (ends("icate")) { r("ic"); break; }
+                    if (ends("ative")) { r(""); break; }
+                    if (ends("alize")) { r("al"); break; }
+                    break;
                 case 'i':
                     if (ends("iciti")) { r("ic"); break; }
                     break;
@@ -307,855 +1363,3189 @@ public class DirtDriver extends Configured implements Tool {
             }
         }
 
-        private final void step5() {
-            if (k == 0) return;
-            switch (b[k - 1]) {
-                case 'a':
-                    if (ends("al")) break; return;
-                case 'c':
-                    if (ends("ance")) break;
-                    if (ends("ence")) break; return;
-                case 'e':
-                    if (ends("er")) break; return;
-                case 'i':
-                    if (ends("ic")) break; return;
-                case 'l':
-                    if (ends("able")) break;
-                    if (ends("ible")) break; return;
-                case 'n':
-                    if (ends("ant")) break;
-                    if (ends("ement")) break;
-                    if (ends("ment")) break;
-                    if (ends("ent")) break; return;
-                case 'o':
-                    if (ends("ion") && j >= 0 && (b[j] == 's' || b[j] == 't')) break;
-                    if (ends("ou")) break; return;
-                case 's':
-                    if (ends("ism")) break; return;
-                case 't':
-                    if (ends("ate")) break;
-                    if (ends("iti")) break; return;
-                case 'u':
-                    if (ends("ous")) break; return;
-                case 'v':
-                    if (ends("ive")) break; return;
-                case 'z':
-                    if (ends("ize")) break; return;
-                default: return;
+        private final void step5() {
+            if (k == 0) return;
+            switch (b[k - 1]) {
+                case 'a':
+                    if (ends("al")) break; return;
+                case 'c':
+                    if (ends("ance")) break;
+                    if (ends("ence")) break; return;
+                case 'e':
+                    if (ends("er")) break; return;
+                case 'i':
+                    if (ends("ic")) break; return;
+                case 'l':
+                    if (ends("able")) break;
+                    if (ends("ible")) break; return;
+                case 'n':
+                    if (ends("ant")) break;
+                    if (ends("ement")) break;
+                    if (ends("ment")) break;
+                    if (ends("ent")) break; return;
+                case 'o':
+                    if (ends("ion") && j >= 0 && (b[j] == 's' || b[j] == 't')) break;
+                    if (ends("ou")) break; return;
+                case 's':
+                    if (ends("ism")) break; return;
+                case 't':
+                    if (ends("ate")) break;
+                    if (ends("iti")) break; return;
+                case 'u':
+                    if (ends("ous")) break; return;
+                case 'v':
+                    if (ends("ive")) break; return;
+                case 'z':
+                    if (ends("ize")) break; return;
+                default: return;
+            }
+            if (m() > 1) k = j;
+        }
+
+        private final void step6() {
+            j = k;
+            if (b[k] == 'e') {
+                int a = m();
+                if (a > 1 || a == 1 && !cvc(k - 1)) k--;
+            }
+            if (b[k] == 'l' && doublec(k) && m() > 1) k--;
+        }
+
+        public void stem() {
+            k = i - 1;
+            if (k > 1) {
+                step1();
+                step2();
+                step3();
+                step4();
+                step5();
+                step6();
+            }
+            i_end = k + 1;
+            i = 0;
+        }
+    }
+
+    /**
+     * Bounded LRU memo in front of PorterStemmer. The same few hundred
+     * thousand word forms repeat constantly, so each task keeps the stems it
+     * has already computed. Lookups go through a reusable char buffer and do
+     * not allocate on a hit.
+     */
+    public static class StemCache {
+        public static final String SIZE = "dirt.stem.cache.size";
+        public static final int DEFAULT_SIZE = 100000;
+
+        public enum StemCounter { HITS, MISSES, EVICTIONS }
+
+        private static final class Key {
+            char[] chars;
+            int len;
+            int hash;
+
+            void set(char[] c, int l) {
+                chars = c;
+                len = l;
+                int h = 0;
+                for (int k = 0; k < l; k++)
+                    h = 31 * h + c[k];
+                hash = h;
+            }
+
+            @Override
+            public int hashCode() {
+                return hash;
+            }
+
+            @Override
+            public boolean equals(Object o) {
+                if (!(o instanceof Key))
+                    return false;
+                Key k = (Key) o;
+                if (k.hash != hash || k.len != len)
+                    return false;
+                for (int c = 0; c < len; c++)
+                    if (k.chars[c] != chars[c])
+                        return false;
+                return true;
+            }
+        }
+
+        private final PorterStemmer stemmer = new PorterStemmer();
+        private final Map<Key, String> cache;
+        private final Key probe = new Key();
+        private char[] scratch = new char[64];
+        private long hits = 0, misses = 0, evictions = 0;
+        private long reportedHits = 0, reportedMisses = 0, reportedEvictions = 0;
+
+        public StemCache() {
+            this(DEFAULT_SIZE);
+        }
+
+        public StemCache(final int maxEntries) {
+            cache = new LinkedHashMap<Key, String>(1024, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Key, String> eldest) {
+                    if (size() <= maxEntries)
+                        return false;
+                    evictions++;
+                    return true;
+                }
+            };
+        }
+
+        public static StemCache fromConf(Configuration conf) {
+            return new StemCache(conf.getInt(SIZE, DEFAULT_SIZE));
+        }
+
+        public String stem(String word) {
+            if (word == null)
+                return "";
+            int len = word.length();
+            ensureScratch(len);
+            word.getChars(0, len, scratch, 0);
+            return lookup(len);
+        }
+
+        /** Stem of the UTF-8 bytes b[off, off + len), equal to stem(Text.decode(b, off, len)). */
+        public String stem(byte[] b, int off, int len) {
+            ensureScratch(len);
+            for (int c = 0; c < len; c++) {
+                byte x = b[off + c];
+                if (x < 0)
+                    return stem(decode(b, off, len));
+                scratch[c] = (char) x;
+            }
+            return lookup(len);
+        }
+
+        private String lookup(int len) {
+            probe.set(scratch, len);
+            String stem = cache.get(probe);
+            if (stem != null) {
+                hits++;
+                return stem;
+            }
+            misses++;
+            stem = stemmer.stem(scratch, 0, len);
+            Key key = new Key();
+            key.set(Arrays.copyOf(scratch, len), len);
+            cache.put(key, stem);
+            return stem;
+        }
+
+        private void ensureScratch(int len) {
+            if (scratch.length < len)
+                scratch = new char[Math.max(len, scratch.length * 2)];
+        }
+
+        private static String decode(byte[] b, int off, int len) {
+            try {
+                return Text.decode(b, off, len);
+            } catch (CharacterCodingException e) {
+                throw new IllegalStateException(e); // cannot happen: Text decodes with REPLACE
+            }
+        }
+
+        /** Adds the hits, misses and evictions since the last call to the task counters. */
+        public void report(TaskInputOutputContext<?, ?, ?, ?> context) {
+            context.getCounter(StemCounter.HITS).increment(hits - reportedHits);
+            context.getCounter(StemCounter.MISSES).increment(misses - reportedMisses);
+            context.getCounter(StemCounter.EVICTIONS).increment(evictions - reportedEvictions);
+            reportedHits = hits;
+            reportedMisses = misses;
+            reportedEvictions = evictions;
+        }
+
+        public long hits() {
+            return hits;
+        }
+
+        public long misses() {
+            return misses;
+        }
+    }
+
+    public static class PathExtractor {
+        private final StemCache stemmer;
+        private static final Set<String> AUX = new HashSet<>(Arrays.asList(
+                "be", "am", "is", "are", "was", "were", "been", "being",
+                "do", "does", "did", "have", "has", "had", "will", "would",
+                "shall", "should", "can", "could", "may", "might", "must"));
+
+        public PathExtractor() {
+            this(new StemCache());
+        }
+
+        public PathExtractor(StemCache stems) {
+            this.stemmer = stems;
+        }
+
+        /**
+         * Noun pairs tried, pairs with no dependency path between them,
+         * paths rejected for lacking a non-auxiliary verb, and paths kept.
+         */
+        public enum PathCounter { NOUN_PAIRS, UNREACHABLE, NO_VERB, PATHS }
+
+        private long nounPairs, unreachable, noVerb, kept;
+        private long reportedNounPairs, reportedUnreachable, reportedNoVerb, reportedKept;
+        private boolean timing;
+        private long bfsNanos, stemNanos, reportedBfsNanos, reportedStemNanos;
+
+        /** Times the graph search and the stemming into Job1_Extraction.PhaseTimer. */
+        public void setTiming(boolean on) {
+            timing = on;
+        }
+
+        /** Adds the path counts and phase times since the last call to the task counters. */
+        public void report(TaskInputOutputContext<?, ?, ?, ?> context) {
+            context.getCounter(PathCounter.NOUN_PAIRS).increment(nounPairs - reportedNounPairs);
+            context.getCounter(PathCounter.UNREACHABLE).increment(unreachable - reportedUnreachable);
+            context.getCounter(PathCounter.NO_VERB).increment(noVerb - reportedNoVerb);
+            context.getCounter(PathCounter.PATHS).increment(kept - reportedKept);
+            reportedNounPairs = nounPairs;
+            reportedUnreachable = unreachable;
+            reportedNoVerb = noVerb;
+            reportedKept = kept;
+            if (timing) {
+                context.getCounter(Job1_Extraction.PhaseTimer.BFS_MILLIS).increment(
+                        bfsNanos / 1000000 - reportedBfsNanos / 1000000);
+                context.getCounter(Job1_Extraction.PhaseTimer.STEM_MILLIS).increment(
+                        stemNanos / 1000000 - reportedStemNanos / 1000000);
+                reportedBfsNanos = bfsNanos;
+                reportedStemNanos = stemNanos;
+            }
+            stemmer.report(context);
+        }
+
+        public StemCache stems() {
+            return stemmer;
+        }
+
+        // Per-sentence graph and BFS buffers, reused across sentences
+        private int[] nouns = new int[16];
+        private int[] adjStart = new int[17];
+        private int[] adjFill = new int[16];
+        private int[] adjList = new int[32];
+        private int[] queue = new int[16];
+        private int[] prev = new int[16];
+        private int[] pathBuf = new int[16];
+
+        private final List<String> paths = new ArrayList<>();
+        private final List<String> xWords = new ArrayList<>();
+        private final List<String> yWords = new ArrayList<>();
+
+        /**
+         * Finds the valid paths between every pair of nouns and returns how
+         * many there are; read them back with path(i), x(i) and y(i).
+         * One BFS per source noun serves all later destination nouns.
+         */
+        public int extractPaths(Sentence tokens) {
+            paths.clear();
+            xWords.clear();
+            yWords.clear();
+            int n = tokens.size();
+            ensureCapacity(n);
+
+            int nounCount = 0;
+            for (int i = 0; i < n; i++) {
+                if (tokens.isNoun(i))
+                    nouns[nounCount++] = i;
+            }
+            if (nounCount < 2)
+                return 0;
+
+            long t = timing ? System.nanoTime() : 0;
+            buildGraph(tokens, n);
+            if (timing)
+                bfsNanos += System.nanoTime() - t;
+            for (int i = 0; i < nounCount - 1; i++) {
+                int src = nouns[i];
+                t = timing ? System.nanoTime() : 0;
+                bfs(src, n);
+                if (timing)
+                    bfsNanos += System.nanoTime() - t;
+                for (int j = i + 1; j < nounCount; j++) {
+                    int dst = nouns[j];
+                    nounPairs++;
+                    int len = tracePath(src, dst);
+                    if (len == 0) {
+                        unreachable++;
+                    } else if (!isValid(tokens, len)) {
+                        noVerb++;
+                    } else {
+                        paths.add(buildPath(tokens, len));
+                        xWords.add(stem(tokens, src));
+                        yWords.add(stem(tokens, dst));
+                    }
+                }
+            }
+            kept += paths.size();
+            return paths.size();
+        }
+
+        public String path(int i) {
+            return paths.get(i);
+        }
+
+        public String x(int i) {
+            return xWords.get(i);
+        }
+
+        public String y(int i) {
+            return yWords.get(i);
+        }
+
+        private void ensureCapacity(int n) {
+            if (nouns.length >= n)
+                return;
+            nouns = new int[n];
+            adjStart = new int[n + 1];
+            adjFill = new int[n];
+            adjList = new int[2 * n];
+            queue = new int[n];
+            prev = new int[n];
+            pathBuf = new int[n];
+        }
+
+        /** Undirected token-head graph in CSR form, neighbours in the order the adjacency lists used to get them. */
+        private void buildGraph(Sentence tokens, int n) {
+            Arrays.fill(adjStart, 0, n + 1, 0);
+            for (int i = 0; i < n; i++) {
+                int h = tokens.head(i) - 1;
+                if (h >= 0 && h < n) {
+                    adjStart[i + 1]++;
+                    adjStart[h + 1]++;
+                }
+            }
+            for (int i = 0; i < n; i++) {
+                adjStart[i + 1] += adjStart[i];
+                adjFill[i] = adjStart[i];
+            }
+            for (int i = 0; i < n; i++) {
+                int h = tokens.head(i) - 1;
+                if (h >= 0 && h < n) {
+                    adjList[adjFill[i]++] = h;
+                    adjList[adjFill[h]++] = i;
+                }
+            }
+        }
+
+        /** Fills prev[] with the BFS tree from src; prev[v] == -1 if v is unreachable. */
+        private void bfs(int src, int n) {
+            Arrays.fill(prev, 0, n, -1);
+            int head = 0, tail = 0;
+            queue[tail++] = src;
+            prev[src] = src;
+            while (head < tail) {
+                int u = queue[head++];
+                for (int e = adjStart[u]; e < adjStart[u + 1]; e++) {
+                    int v = adjList[e];
+                    if (prev[v] == -1) {
+                        prev[v] = u;
+                        queue[tail++] = v;
+                    }
+                }
+            }
+        }
+
+        /** Writes the src..dst path into pathBuf and returns its length, or 0 if dst is unreachable. */
+        private int tracePath(int src, int dst) {
+            if (prev[dst] == -1)
+                return 0;
+            int len = 1;
+            for (int curr = dst; curr != src; curr = prev[curr])
+                len++;
+            int k = len;
+            for (int curr = dst; curr != src; curr = prev[curr])
+                pathBuf[--k] = curr;
+            pathBuf[0] = src;
+            return len;
+        }
+
+        private String stem(Sentence toks, int i) {
+            if (!timing)
+                return stemmer.stem(toks.bytes(), toks.wordStart(i), toks.wordEnd(i) - toks.wordStart(i));
+            long t = System.nanoTime();
+            String stem = stemmer.stem(toks.bytes(), toks.wordStart(i), toks.wordEnd(i) - toks.wordStart(i));
+            stemNanos += System.nanoTime() - t;
+            return stem;
+        }
+
+        private boolean isValid(Sentence toks, int len) {
+            for (int i = 0; i < len; i++) {
+                int idx = pathBuf[i];
+                if (toks.isVerb(idx) && !AUX.contains(toks.word(idx).toLowerCase()))
+                    return true;
+            }
+            return false;
+        }
+
+        private String buildPath(Sentence toks, int len) {
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < len; i++) {
+                int curr = pathBuf[i];
+                if (i == 0 || i == len - 1)
+                    sb.append("N");
+                else if (toks.isVerb(curr))
+                    sb.append("V:").append(stem(toks, curr));
+                else if (toks.isPrep(curr))
+                    sb.append("P:").append(toks.word(curr).toLowerCase());
+                else
+                    sb.append("W:").append(toks.word(curr).toLowerCase());
+
+                if (i < len - 1) {
+                    int next = pathBuf[i + 1];
+                    String rel = (toks.head(curr) - 1 == next) ? "<" + toks.dep(curr) : ">" + toks.dep(next);
+                    sb.append(":").append(rel).append(":");
+                }
+            }
+            return sb.toString();
+        }
+    }
+
+    // --- JOB 1: Extraction ---
+    public static class Job1_Extraction {
+        /** In-mapper combining: on by default, flushed at this many distinct keys or below this free heap fraction. */
+        public static final String INMAPPER_ENABLED = "dirt.inmapper.enabled";
+        public static final String INMAPPER_MAX_ENTRIES = "dirt.inmapper.max.entries";
+        public static final String INMAPPER_MIN_FREE_HEAP = "dirt.inmapper.min.free.heap";
+
+        public enum InMapperCounter { LOOKUPS, HITS, FLUSHES, FLUSHED_RECORDS }
+
+        /** N is summed in a job counter, so it never goes through the shuffle as a single hot key. */
+        public enum TotalCounter { GLOBAL_N }
+
+        /**
+         * Input lines read, lines missing the n-gram or count field, lines
+         * with no usable token, and tokens skipped for a bad format or head.
+         */
+        public enum LineCounter { LINES, MALFORMED, NO_TOKENS, SKIPPED_TOKENS }
+
+        /** Time spent per phase of the mapper, when dirt.counters.timing is on (the default). */
+        public enum PhaseTimer { PARSE_MILLIS, BFS_MILLIS, STEM_MILLIS, EMIT_MILLIS }
+
+        public static final String TIMING = "dirt.counters.timing";
+
+        public static class Map extends Mapper<LongWritable, Text, ExtractionKey, LongWritable> {
+            private static final int MEMORY_CHECK_INTERVAL = 4096;
+            private static final byte TAB = '\t', SPACE = ' ', SLASH = '/';
+            private static final long NOT_A_NUMBER = Long.MIN_VALUE;
+
+            private PathExtractor extractor;
+            private final Sentence sentence = new Sentence();
+            private final LongWritable outVal = new LongWritable();
+            private final ExtractionKey outKey = new ExtractionKey();
+            private long lines, malformed, noTokens, skippedTokens;
+            private boolean timing;
+            private long parseNanos, emitNanos;
+
+            private boolean inMapper;
+            private int maxEntries;
+            private double minFreeHeap;
+            private final java.util.Map<ExtractionKey, long[]> partials = new HashMap<>();
+            private long lookups = 0, hits = 0;
+            private int insertsSinceCheck = 0;
+            private Counter globalN;
+
+            @Override
+            protected void setup(Context context) {
+                globalN = context.getCounter(TotalCounter.GLOBAL_N);
+                Configuration conf = context.getConfiguration();
+                extractor = new PathExtractor(StemCache.fromConf(conf));
+                timing = conf.getBoolean(TIMING, true);
+                extractor.setTiming(timing);
+                inMapper = conf.getBoolean(INMAPPER_ENABLED, true);
+                maxEntries = conf.getInt(INMAPPER_MAX_ENTRIES, 200000);
+                minFreeHeap = conf.getDouble(INMAPPER_MIN_FREE_HEAP, 0.2);
+            }
+
+            @Override
+            protected void map(LongWritable key, Text value, Context context) throws IOException, InterruptedException {
+                lines++;
+                long t = timing ? System.nanoTime() : 0;
+                Sentence tokens = parseLine(value.getBytes(), value.getLength());
+                if (timing)
+                    parseNanos += System.nanoTime() - t;
+                if (tokens == null)
+                    return;
+                long count = tokens.count();
+
+                int extracted = extractor.extractPaths(tokens);
+                t = timing ? System.nanoTime() : 0;
+                for (int i = 0; i < extracted; i++) {
+                    // Margins are sums of the triple counts; Job 1.5 derives them
+                    emit(context, ExtractionKey.TRIPLE, extractor.path(i), Ids.SLOT_X, extractor.x(i), count);
+                    emit(context, ExtractionKey.TRIPLE, extractor.path(i), Ids.SLOT_Y, extractor.y(i), count);
+                    globalN.increment(count * 2);
+                }
+                if (timing)
+                    emitNanos += System.nanoTime() - t;
+            }
+
+            private void emit(Context ctx, byte type, String path, int slot, String word, long v)
+                    throws IOException, InterruptedException {
+                outKey.set(type, path, slot, word);
+                if (inMapper) {
+                    aggregate(ctx, v);
+                    return;
+                }
+                outVal.set(v);
+                ctx.write(outKey, outVal);
+            }
+
+            /** Adds v to the partial count of outKey, flushing the table when it gets too big. */
+            private void aggregate(Context ctx, long v) throws IOException, InterruptedException {
+                lookups++;
+                long[] partial = partials.get(outKey);
+                if (partial != null) {
+                    partial[0] += v;
+                    hits++;
+                    return;
+                }
+                ExtractionKey k = new ExtractionKey();
+                k.set(outKey);
+                partials.put(k, new long[] { v });
+                if (partials.size() >= maxEntries || (++insertsSinceCheck >= MEMORY_CHECK_INTERVAL && lowOnHeap()))
+                    flush(ctx);
+            }
+
+            private boolean lowOnHeap() {
+                insertsSinceCheck = 0;
+                Runtime rt = Runtime.getRuntime();
+                long free = rt.maxMemory() - (rt.totalMemory() - rt.freeMemory());
+                return free < minFreeHeap * rt.maxMemory();
+            }
+
+            private void flush(Context ctx) throws IOException, InterruptedException {
+                for (java.util.Map.Entry<ExtractionKey, long[]> e : partials.entrySet()) {
+                    outVal.set(e.getValue()[0]);
+                    ctx.write(e.getKey(), outVal);
+                }
+                ctx.getCounter(InMapperCounter.FLUSHES).increment(1);
+                ctx.getCounter(InMapperCounter.FLUSHED_RECORDS).increment(partials.size());
+                ctx.getCounter(InMapperCounter.LOOKUPS).increment(lookups);
+                ctx.getCounter(InMapperCounter.HITS).increment(hits);
+                lookups = 0;
+                hits = 0;
+                partials.clear();
+            }
+
+            @Override
+            protected void cleanup(Context ctx) throws IOException, InterruptedException {
+                long t = timing ? System.nanoTime() : 0;
+                if (inMapper)
+                    flush(ctx);
+                if (timing)
+                    emitNanos += System.nanoTime() - t;
+                extractor.report(ctx);
+                ctx.getCounter(LineCounter.LINES).increment(lines);
+                ctx.getCounter(LineCounter.MALFORMED).increment(malformed);
+                ctx.getCounter(LineCounter.NO_TOKENS).increment(noTokens);
+                ctx.getCounter(LineCounter.SKIPPED_TOKENS).increment(skippedTokens);
+                if (timing) {
+                    ctx.getCounter(PhaseTimer.PARSE_MILLIS).increment(parseNanos / 1000000);
+                    ctx.getCounter(PhaseTimer.EMIT_MILLIS).increment(emitNanos / 1000000);
+                }
+            }
+
+            /**
+             * Parses one biarcs line into the reusable sentence buffer, or
+             * returns null for a line that yields no tokens. The line's
+             * count is in the sentence. The local engine parses with it too.
+             */
+            Sentence parseLine(byte[] line, int len) {
+                // Fields: head word, n-gram, count, ... (like split("\t"), trailing empty fields do not count)
+                int tab1 = indexOf(line, 0, len, TAB);
+                int tab2 = tab1 < 0 ? -1 : indexOf(line, tab1 + 1, len, TAB);
+                if (tab2 < 0 || !hasNonTab(line, tab2 + 1, len)) {
+                    malformed++;
+                    return null;
+                }
+                int tab3 = indexOf(line, tab2 + 1, len, TAB);
+
+                long count = parseCount(line, tab2 + 1, tab3 < 0 ? len : tab3);
+
+                Sentence tokens = parse(line, tab1 + 1, tab2);
+                if (tokens.size() == 0) {
+                    noTokens++;
+                    return null;
+                }
+                tokens.setCount(count);
+                return tokens;
+            }
+
+            /**
+             * Parses the space-separated "word/POS/dep/head" tokens of line[start, end)
+             * into the reusable sentence buffer. Tokens without three slashes or
+             * with a non-integer head are skipped.
+             */
+            Sentence parse(byte[] line, int start, int end) {
+                sentence.reset(line);
+                int pos = start;
+                while (pos < end) {
+                    int tokEnd = indexOf(line, pos, end, SPACE);
+                    if (tokEnd < 0)
+                        tokEnd = end;
+                    if (tokEnd > pos)
+                        parseToken(line, pos, tokEnd);
+                    pos = tokEnd + 1;
+                }
+                return sentence;
+            }
+
+            private void parseToken(byte[] line, int start, int end) {
+                int lastSlash = lastIndexOf(line, start, end, SLASH);
+                int secondLastSlash = lastSlash < 0 ? -1 : lastIndexOf(line, start, lastSlash, SLASH);
+                int thirdLastSlash = secondLastSlash < 0 ? -1 : lastIndexOf(line, start, secondLastSlash, SLASH);
+                long head = thirdLastSlash < 0 ? NOT_A_NUMBER : parseInt(line, lastSlash + 1, end);
+                if (head == NOT_A_NUMBER) {
+                    skippedTokens++;
+                    return;
+                }
+                sentence.add(start, thirdLastSlash, thirdLastSlash + 1, secondLastSlash,
+                        secondLastSlash + 1, lastSlash, (int) head);
+            }
+
+            private static int indexOf(byte[] b, int from, int to, byte c) {
+                for (int i = from; i < to; i++)
+                    if (b[i] == c)
+                        return i;
+                return -1;
+            }
+
+            private static int lastIndexOf(byte[] b, int from, int to, byte c) {
+                for (int i = to - 1; i >= from; i--)
+                    if (b[i] == c)
+                        return i;
+                return -1;
+            }
+
+            private static boolean hasNonTab(byte[] b, int from, int to) {
+                for (int i = from; i < to; i++)
+                    if (b[i] != TAB)
+                        return true;
+                return false;
+            }
+
+            /** Long.parseLong of the field, or 1 if it is not a number. */
+            private static long parseCount(byte[] b, int start, int end) {
+                for (int i = start; i < end; i++) {
+                    if (b[i] < 0) {
+                        // Non-ASCII (e.g. other Unicode digits): defer to the JDK
+                        try {
+                            return Long.parseLong(Text.decode(b, start, end - start));
+                        } catch (Exception e) {
+                            return 1;
+                        }
+                    }
+                }
+                int i = start;
+                boolean negative = i < end && b[i] == '-';
+                if (i < end && (b[i] == '-' || b[i] == '+'))
+                    i++;
+                if (i == end)
+                    return 1;
+                long limit = negative ? Long.MIN_VALUE : -Long.MAX_VALUE;
+                long multmin = limit / 10;
+                long result = 0; // accumulated negatively, like Long.parseLong
+                for (; i < end; i++) {
+                    int d = b[i] - '0';
+                    if (d < 0 || d > 9 || result < multmin)
+                        return 1;
+                    result *= 10;
+                    if (result < limit + d)
+                        return 1;
+                    result -= d;
+                }
+                return negative ? result : -result;
+            }
+
+            /** Integer.parseInt of the field, or NOT_A_NUMBER. */
+            private static long parseInt(byte[] b, int start, int end) {
+                for (int i = start; i < end; i++) {
+                    if (b[i] < 0) {
+                        try {
+                            return Integer.parseInt(Text.decode(b, start, end - start));
+                        } catch (Exception e) {
+                            return NOT_A_NUMBER;
+                        }
+                    }
+                }
+                int i = start;
+                boolean negative = i < end && b[i] == '-';
+                if (i < end && (b[i] == '-' || b[i] == '+'))
+                    i++;
+                if (i == end)
+                    return NOT_A_NUMBER;
+                long result = 0;
+                for (; i < end; i++) {
+                    int d = b[i] - '0';
+                    if (d < 0 || d > 9)
+                        return NOT_A_NUMBER;
+                    result = result * 10 + d;
+                    if (result > (long) Integer.MAX_VALUE + 1)
+                        return NOT_A_NUMBER;
+                }
+                if (negative)
+                    return -result;
+                return result > Integer.MAX_VALUE ? NOT_A_NUMBER : result;
+            }
+        }
+
+        public static class Combine extends Reducer<ExtractionKey, LongWritable, ExtractionKey, LongWritable> {
+            @Override
+            protected void reduce(ExtractionKey key, Iterable<LongWritable> values, Context ctx)
+                    throws IOException, InterruptedException {
+                long sum = 0;
+                for (LongWritable v : values)
+                    sum += v.get();
+                ctx.write(key, new LongWritable(sum));
+            }
+        }
+
+        public static class Reduce extends Reducer<ExtractionKey, LongWritable, ExtractionKey, LongWritable> {
+            private MultipleOutputs<ExtractionKey, LongWritable> mos;
+            private final LongWritable outVal = new LongWritable();
+
+            @Override
+            protected void setup(Context context) {
+                mos = new MultipleOutputs<>(context);
+            }
+
+            @Override
+            protected void reduce(ExtractionKey key, Iterable<LongWritable> values, Context ctx)
+                    throws IOException, InterruptedException {
+                long sum = 0;
+                for (LongWritable v : values)
+                    sum += v.get();
+                outVal.set(sum);
+                if (key.type == ExtractionKey.TRIPLE)
+                    mos.write("triples", key, outVal);
+            }
+
+            @Override
+            protected void cleanup(Context ctx) throws IOException, InterruptedException {
+                mos.close();
+            }
+        }
+    }
+
+    // --- JOB 1.5: Dictionary & Margins ---
+    public static class Job15_Dictionary {
+        public static final byte TAG_PATH = 'P';
+        public static final byte TAG_WORD = 'W';
+
+        /** Ids assigned, and paths whose X or Y margin is zero (they get no vector in that slot). */
+        public enum DictionaryCounter { PATHS, WORDS, ZERO_SLOT_MARGINS }
+
+        /** Number of reducers; defaults to mapreduce.job.reduces. */
+        public static final String REDUCERS = "dirt.dictionary.reducers";
+        /** Positions sampled per Job 1 file, and keys read at each, when choosing the split points. */
+        private static final int SAMPLE_POSITIONS = 100;
+        private static final int SAMPLE_RECORDS = 100;
+
+        /**
+         * Samples the tagged keys of the Job 1 triples at evenly spaced
+         * positions of every file and writes reducers - 1 split points
+         * between them to the partition file, for TotalOrderPartitioner.
+         * Returns the number of reducers to run: fewer than asked when the
+         * sample holds fewer distinct keys.
+         */
+        public static int writeSplits(Configuration conf, Path triples, Path splits, int reducers) throws IOException {
+            FileSystem fs = triples.getFileSystem(conf);
+            FileStatus[] files = fs.globStatus(triples);
+            TreeSet<Text> sample = new TreeSet<>();
+            ExtractionKey key = new ExtractionKey();
+            LongWritable count = new LongWritable();
+            for (FileStatus file : files == null ? new FileStatus[0] : files) {
+                try (SequenceFile.Reader reader = new SequenceFile.Reader(conf, SequenceFile.Reader.file(file.getPath()))) {
+                    long step = Math.max(1, file.getLen() / SAMPLE_POSITIONS);
+                    for (long pos = 0; pos < file.getLen(); pos += step) {
+                        // Keep reading where the last position stopped when it is already past this one
+                        if (pos > reader.getPosition())
+                            reader.sync(pos);
+                        for (int r = 0; r < SAMPLE_RECORDS && reader.next(key, count); r++) {
+                            if (key.type != ExtractionKey.TRIPLE)
+                                continue;
+                            sample.add(tagged(TAG_PATH, key.path));
+                            sample.add(tagged(TAG_WORD, key.word));
+                        }
+                    }
+                }
+            }
+            reducers = Math.max(1, Math.min(reducers, sample.size()));
+            Text[] keys = sample.toArray(new Text[0]);
+            try (SequenceFile.Writer writer = SequenceFile.createWriter(conf, SequenceFile.Writer.file(splits),
+                    SequenceFile.Writer.keyClass(Text.class), SequenceFile.Writer.valueClass(NullWritable.class))) {
+                for (int i = 1; i < reducers; i++)
+                    writer.append(keys[(int) ((long) i * keys.length / reducers)], NullWritable.get());
+            }
+            System.err.println("Split " + keys.length + " sampled keys for " + reducers + " dictionary reducers");
+            return reducers;
+        }
+
+        private static Text tagged(byte tag, Text name) {
+            Text t = new Text();
+            t.append(new byte[] {tag}, 0, 1);
+            t.append(name.getBytes(), 0, name.getLength());
+            return t;
+        }
+
+        /** Keys are the raw string bytes behind a one-byte tag, so no String is built per triple. */
+        public static class Map extends Mapper<ExtractionKey, LongWritable, Text, SlotCounts> {
+            private final Text outKey = new Text();
+            private final SlotCounts outVal = new SlotCounts();
+            private final byte[] tag = new byte[1];
+
+            @Override
+            protected void map(ExtractionKey key, LongWritable value, Context context)
+                    throws IOException, InterruptedException {
+                if (key.type != ExtractionKey.TRIPLE)
+                    return;
+                outVal.set(key.slot, value.get());
+                emit(context, TAG_PATH, key.path);
+                emit(context, TAG_WORD, key.word);
+            }
+
+            private void emit(Context ctx, byte t, Text name) throws IOException, InterruptedException {
+                tag[0] = t;
+                outKey.clear();
+                outKey.append(tag, 0, 1);
+                outKey.append(name.getBytes(), 0, name.getLength());
+                ctx.write(outKey, outVal);
+            }
+        }
+
+        public static class Combine extends Reducer<Text, SlotCounts, Text, SlotCounts> {
+            private final SlotCounts sum = new SlotCounts();
+
+            @Override
+            protected void reduce(Text key, Iterable<SlotCounts> values, Context ctx)
+                    throws IOException, InterruptedException {
+                sum.clear();
+                for (SlotCounts v : values)
+                    sum.add(v);
+                ctx.write(key, sum);
+            }
+        }
+
+        /**
+         * Writes the paths and words of its key range to NameTable parts.
+         * With several reducers, a total-order partitioner hands each one a
+         * contiguous range of the sorted keys, so ids are dense and follow
+         * the sorted order of the strings once NameTables adds the sizes of
+         * the parts before. The per-slot sums of a path or word are exactly
+         * the Count(p,s) and Count(s,w) margins. N is not summed here: the
+         * driver takes it from Job 1's GLOBAL_N counter.
+         */
+        public static class Reduce extends Reducer<Text, SlotCounts, ExtractionKey, LongWritable> {
+            private MultipleOutputs<ExtractionKey, LongWritable> mos;
+            private final Text outName = new Text();
+            private final ExtractionKey marginKey = new ExtractionKey();
+            private final LongWritable marginVal = new LongWritable();
+            private final SlotCounts sum = new SlotCounts();
+            private NameTable.Writer pathTable;
+            private NameTable.Writer wordTable;
+            private int nextPathId = 0;
+            private int nextWordId = 0;
+            private long zeroMargins = 0;
+
+            @Override
+            protected void setup(Context context) throws IOException, InterruptedException {
+                mos = new MultipleOutputs<>(context);
+                Configuration conf = context.getConfiguration();
+                pathTable = new NameTable.Writer(conf, FileOutputFormat.getPathForWorkFile(context, "pathtable", ""));
+                wordTable = new NameTable.Writer(conf, FileOutputFormat.getPathForWorkFile(context, "wordtable", ""));
+            }
+
+            @Override
+            protected void reduce(Text key, Iterable<SlotCounts> values, Context ctx)
+                    throws IOException, InterruptedException {
+                sum.clear();
+                for (SlotCounts v : values)
+                    sum.add(v);
+                outName.set(key.getBytes(), 1, key.getLength() - 1);
+                byte tag = key.getBytes()[0];
+                if (tag == TAG_PATH) {
+                    nextPathId++;
+                    pathTable.add(outName.getBytes(), 0, outName.getLength(), sum.x, sum.y);
+                    writePathMargin(Ids.SLOT_X, sum.x);
+                    writePathMargin(Ids.SLOT_Y, sum.y);
+                } else if (tag == TAG_WORD) {
+                    nextWordId++;
+                    wordTable.add(outName.getBytes(), 0, outName.getLength(), sum.x, sum.y);
+                }
+            }
+
+            private void writePathMargin(int slot, long count) throws IOException, InterruptedException {
+                if (count == 0) {
+                    zeroMargins++;
+                    return;
+                }
+                marginKey.type = ExtractionKey.PS_MARGIN;
+                marginKey.slot = (byte) slot;
+                marginKey.path.set(outName);
+                marginKey.word.clear();
+                marginVal.set(count);
+                mos.write("pathmargins", marginKey, marginVal);
+            }
+
+            @Override
+            protected void cleanup(Context ctx) throws IOException, InterruptedException {
+                System.err.println("Assigned " + nextPathId + " path ids and " + nextWordId + " word ids");
+                ctx.getCounter(DictionaryCounter.PATHS).increment(nextPathId);
+                ctx.getCounter(DictionaryCounter.WORDS).increment(nextWordId);
+                ctx.getCounter(DictionaryCounter.ZERO_SLOT_MARGINS).increment(zeroMargins);
+                mos.close();
+                pathTable.close();
+                wordTable.close();
+            }
+        }
+    }
+
+    // --- JOB 2: MI Calculation ---
+    public static class Job2_MI {
+        /**
+         * Looks paths, words and Count(s,w) up in the memory-mapped tables
+         * from Job 1.5, so setup cost and heap do not grow with the vocabulary.
+         */
+        public static class Map extends Mapper<ExtractionKey, LongWritable, PathSlotKey, TripleCount> {
+            private NameTables pathTable;
+            private NameTables wordTable;
+            private final PathSlotKey outKey = new PathSlotKey();
+            private final TripleCount outVal = new TripleCount();
+            private long unknownPaths, noWordMargins;
+
+            @Override
+            protected void setup(Context context) throws IOException {
+                URI[] files = context.getCacheFiles();
+                try {
+                    pathTable = NameTables.openLocal(files, "pathtable");
+                    wordTable = NameTables.openLocal(files, "wordtable");
+                } catch (IOException e) {
+                    System.err.println("ERROR loading name tables: " + e.getMessage());
+                    throw new IOException("Failed to load critical cache file", e);
+                }
+                if (pathTable.size() == 0 || wordTable.size() == 0) {
+                    throw new IOException("No path or word table loaded! Check cache files.");
+                }
+                System.err.println("Mapped " + pathTable.size() + " paths and " + wordTable.size() + " words");
+            }
+
+            @Override
+            protected void map(ExtractionKey key, LongWritable value, Context context)
+                    throws IOException, InterruptedException {
+                if (key.type == ExtractionKey.PS_MARGIN) {
+                    int pathId = pathTable.find(key.path);
+                    if (pathId >= 0) {
+                        outKey.set(pathId, key.slot, 0, 0);
+                        outVal.set(value.get(), 0);
+                        context.write(outKey, outVal);
+                    }
+                } else if (key.type == ExtractionKey.TRIPLE) {
+                    int pathId = pathTable.find(key.path);
+                    int wordId = wordTable.find(key.word);
+                    long sw = wordId >= 0 ? wordTable.count(wordId, key.slot) : 0;
+                    if (sw != 0 && pathId >= 0) {
+                        outKey.set(pathId, key.slot, 1, wordId);
+                        outVal.set(value.get(), sw);
+                        context.write(outKey, outVal);
+                    } else if (pathId < 0) {
+                        unknownPaths++;
+                    } else {
+                        noWordMargins++;
+                    }
+                }
+            }
+
+            @Override
+            protected void cleanup(Context context) {
+                context.getCounter(TripleCounter.UNKNOWN_PATH).increment(unknownPaths);
+                context.getCounter(TripleCounter.NO_WORD_MARGIN).increment(noWordMargins);
+            }
+        }
+
+        /** Triples the mapper drops because the path or the (slot, word) margin is not in the tables. */
+        public enum TripleCounter { UNKNOWN_PATH, NO_WORD_MARGIN }
+
+        /** Triples scored, dropped at or below MIN_MI, and kept as features. */
+        public enum MiCounter { TRIPLES, BELOW_MIN, KEPT }
+
+        /** (path, slot) groups whose triples arrived without a Count(p,s) margin. */
+        public enum MarginCounter { MISSING }
+
+        /** Triples with an MI at or below this are dropped. */
+        public static final double MIN_MI = 0.001;
+
+        /** MI(p, s, w) from the triple count, N and the two margins; 0 when a count is not positive. */
+        public static double mi(long count, long n, long psCount, long wordMargin) {
+            double numerator = (double) count * n;
+            double denominator = (double) psCount * wordMargin;
+            return numerator > 0 && denominator > 0 ? Math.log(numerator / denominator) : 0;
+        }
+
+        /**
+         * Also writes the MI sum of every (path, slot) group to the "summi"
+         * named output, keyed by the packed (path, slot) id, which is what
+         * Job 4 divides by.
+         */
+        public static class Reduce extends Reducer<PathSlotKey, TripleCount, NullWritable, FeatureMI> {
+            private long N = 1;
+            private MultipleOutputs<NullWritable, FeatureMI> mos;
+            private final FeatureMI outVal = new FeatureMI();
+            private final LongWritable sumKey = new LongWritable();
+            private final DoubleWritable sumVal = new DoubleWritable();
+            private long triples, belowMin;
+
+            @Override
+            protected void setup(Context context) {
+                N = context.getConfiguration().getLong("GLOBAL_N", 1);
+                System.err.println("Using GLOBAL_N = " + N);
+                mos = new MultipleOutputs<>(context);
+            }
+
+            /**
+             * The secondary sort puts the (path, slot) margin ahead of its
+             * triples, so MI is computed as the triples stream past and
+             * nothing is buffered, however popular the path. The triples
+             * follow in word id order, and SumMI is summed in that order.
+             */
+            @Override
+            protected void reduce(PathSlotKey key, Iterable<TripleCount> values, Context context)
+                    throws IOException, InterruptedException {
+                long psCount = 0;
+                double sumMI = 0;
+                boolean kept = false;
+                for (TripleCount val : values) {
+                    // The secondary sort updates key.type and key.word as the values advance
+                    if (key.type == 0) {
+                        psCount = val.count;
+                        continue;
+                    }
+                    if (psCount == 0) {
+                        System.err.println("WARNING: No margin found for path=" + key.path + " slot=" + key.slot);
+                        context.getCounter(MarginCounter.MISSING).increment(1);
+                        return;
+                    }
+                    double mi = mi(val.count, N, psCount, val.wordMargin);
+                    triples++;
+                    if (mi > MIN_MI) {
+                        outVal.set(key.path, key.slot, key.word, mi);
+                        context.write(NullWritable.get(), outVal);
+                        sumMI += mi;
+                        kept = true;
+                    } else {
+                        belowMin++;
+                    }
+                }
+                if (kept) {
+                    sumKey.set(Ids.pack(key.path, key.slot));
+                    sumVal.set(sumMI);
+                    mos.write("summi", sumKey, sumVal);
+                }
+            }
+
+            @Override
+            protected void cleanup(Context context) throws IOException, InterruptedException {
+                context.getCounter(MiCounter.TRIPLES).increment(triples);
+                context.getCounter(MiCounter.BELOW_MIN).increment(belowMin);
+                context.getCounter(MiCounter.KEPT).increment(triples - belowMin);
+                mos.close();
+            }
+        }
+    }
+
+    // --- VECTOR STORE: Indexed Path Vectors ---
+    /**
+     * Optional job after Job 2 (-D dirt.store.build=true). It writes every
+     * path's vector, with its SumMI, into a MapFile keyed by the path
+     * string, so the "score" command can fetch just the paths of a new
+     * pair list through the MapFile index instead of rescanning step2.
+     */
+    public static class VectorStore {
+        public static final String BUILD = "dirt.store.build";
+        public static final String CACHE_SIZE = "dirt.store.cache.size";
+        public static final int DEFAULT_CACHE_SIZE = 10000;
+
+        public static class Map extends Mapper<NullWritable, FeatureMI, Text, FeatureMI> {
+            private NameTables pathTable;
+            private final Text outKey = new Text();
+
+            @Override
+            protected void setup(Context context) throws IOException {
+                pathTable = NameTables.openLocal(context.getCacheFiles(), "pathtable");
+                if (pathTable.size() == 0)
+                    throw new IOException("No path table loaded! Check cache files.");
+            }
+
+            @Override
+            protected void map(NullWritable key, FeatureMI value, Context context)
+                    throws IOException, InterruptedException {
+                pathTable.name(value.path, outKey);
+                context.write(outKey, value);
+            }
+        }
+
+        public static class Reduce extends Reducer<Text, FeatureMI, Text, PathVector> {
+            private final PathVector vector = new PathVector();
+
+            @Override
+            protected void reduce(Text key, Iterable<FeatureMI> values, Context context)
+                    throws IOException, InterruptedException {
+                vector.clear();
+                for (FeatureMI val : values)
+                    vector.add(val.slot, val.word, val.mi);
+                vector.sort();
+                context.write(key, vector);
+            }
+        }
+
+        private final MapFile.Reader[] readers;
+        private final Partitioner<Text, PathVector> partitioner = new HashPartitioner<>();
+        private final java.util.Map<String, PathVector> cache;
+
+        public VectorStore(Path dir, Configuration conf) throws IOException {
+            readers = MapFileOutputFormat.getReaders(dir, conf);
+            final int maxEntries = conf.getInt(CACHE_SIZE, DEFAULT_CACHE_SIZE);
+            cache = new LinkedHashMap<String, PathVector>(1024, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(java.util.Map.Entry<String, PathVector> eldest) {
+                    return size() > maxEntries;
+                }
+            };
+        }
+
+        /**
+         * The path's vector, or null if the path has none. The last
+         * dirt.store.cache.size paths looked up are kept, so a path that
+         * recurs in a pair list is usually read once.
+         */
+        public PathVector get(String path) throws IOException {
+            PathVector v = cache.get(path);
+            if (v != null || cache.containsKey(path))
+                return v;
+            v = new PathVector();
+            if (MapFileOutputFormat.getEntry(readers, partitioner, new Text(path), v) == null)
+                v = null;
+            cache.put(path, v);
+            return v;
+        }
+
+        public void close() throws IOException {
+            for (MapFile.Reader r : readers)
+                r.close();
+        }
+    }
+
+    // --- QUERY INDEX: Local Similarity Lookups ---
+    /**
+     * Memory-mapped index of the vector store for interactive queries
+     * ("index", "query" and "serve" commands). Files in the index directory:
+     * paths.names/.index, a NameTable whose X and Y columns hold each
+     * path's offset in vectors.bin and its feature count; vectors.bin, with
+     * per path (double sumX, double sumY) followed by its (long feature,
+     * double MI) entries sorted by feature; features.bin, with one
+     * (long feature, long offset, long count) record per feature sorted by
+     * feature; and postings.bin, with the (long path, double MI) entries of
+     * each feature. Index path ids are the ranks of the path strings.
+     */
+    public static class SimilarityIndex {
+        /** Postings longer than this are stop-features and do not propose top-k candidates. */
+        public static final String MAX_POSTINGS = "dirt.query.max.postings";
+
+        private final NameTable paths;
+        private final MappedFile vectors;
+        private final MappedFile features;
+        private final MappedFile postings;
+        private final int numFeatures;
+        private final int maxPostings;
+
+        // Per-query scratch, reused; queries run one at a time
+        private int[] seen = new int[0];
+        private int epoch = 0;
+        private int[] candidates = new int[1024];
+
+        public SimilarityIndex(File dir, int maxPostings) throws IOException {
+            paths = NameTable.open(new File(dir, "paths" + NameTable.NAMES));
+            vectors = new MappedFile(new File(dir, "vectors.bin"));
+            features = new MappedFile(new File(dir, "features.bin"));
+            postings = new MappedFile(new File(dir, "postings.bin"));
+            numFeatures = (int) (features.length() / 24);
+            this.maxPostings = maxPostings;
+            seen = new int[paths.size()];
+        }
+
+        /** Writes the index of a vector store into a local directory. */
+        public static void build(Configuration conf, Path storeDir, File dir) throws IOException {
+            if (!dir.isDirectory() && !dir.mkdirs())
+                throw new IOException("Cannot create " + dir);
+            FileSystem fs = storeDir.getFileSystem(conf);
+            List<Path> parts = new ArrayList<>();
+            for (FileStatus st : fs.listStatus(storeDir))
+                if (st.isDirectory() && !st.getPath().getName().startsWith("_"))
+                    parts.add(new Path(st.getPath(), MapFile.DATA_FILE_NAME));
+
+            // Pass 1: the sorted path strings give the ids
+            List<byte[]> names = new ArrayList<>();
+            Text key = new Text();
+            PathVector vector = new PathVector();
+            for (Path part : parts) {
+                try (SequenceFile.Reader reader = new SequenceFile.Reader(conf, SequenceFile.Reader.file(part))) {
+                    while (reader.next(key))
+                        names.add(key.copyBytes());
+                }
+            }
+            names.sort((a, b) -> WritableComparator.compareBytes(a, 0, a.length, b, 0, b.length));
+
+            // Pass 2: vectors in store order, postings collected per feature
+            long[] offsets = new long[names.size()];
+            long[] counts = new long[names.size()];
+            Map<Long, PostingList> inverted = new HashMap<>();
+            long offset = 0;
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(new File(dir, "vectors.bin"))))) {
+                for (Path part : parts) {
+                    try (SequenceFile.Reader reader = new SequenceFile.Reader(conf, SequenceFile.Reader.file(part))) {
+                        while (reader.next(key, vector)) {
+                            int id = Collections.binarySearch(names, key.copyBytes(),
+                                    (a, b) -> WritableComparator.compareBytes(a, 0, a.length, b, 0, b.length));
+                            offsets[id] = offset;
+                            counts[id] = vector.size;
+                            out.writeDouble(vector.sumX);
+                            out.writeDouble(vector.sumY);
+                            for (int i = 0; i < vector.size; i++) {
+                                out.writeLong(vector.features[i]);
+                                out.writeDouble(vector.mis[i]);
+                                inverted.computeIfAbsent(vector.features[i], f -> new PostingList()).add(id, vector.mis[i]);
+                            }
+                            offset += 16 + 16L * vector.size;
+                        }
+                    }
+                }
+            }
+
+            try (NameTable.Writer table = new NameTable.Writer(conf, new Path(new File(dir, "paths").toURI()))) {
+                for (int id = 0; id < names.size(); id++)
+                    table.add(names.get(id), 0, names.get(id).length, offsets[id], counts[id]);
+            }
+
+            long[] keys = new long[inverted.size()];
+            int k = 0;
+            for (long f : inverted.keySet())
+                keys[k++] = f;
+            Arrays.sort(keys);
+            long postingOffset = 0;
+            try (DataOutputStream fo = new DataOutputStream(new BufferedOutputStream(
+                         new FileOutputStream(new File(dir, "features.bin"))));
+                 DataOutputStream po = new DataOutputStream(new BufferedOutputStream(
+                         new FileOutputStream(new File(dir, "postings.bin"))))) {
+                for (long f : keys) {
+                    PostingList list = inverted.get(f);
+                    fo.writeLong(f);
+                    fo.writeLong(postingOffset);
+                    fo.writeLong(list.size);
+                    for (int i = 0; i < list.size; i++) {
+                        po.writeLong(list.paths[i]);
+                        po.writeDouble(list.mis[i]);
+                    }
+                    postingOffset += 16L * list.size;
+                }
+            }
+            System.err.println("Indexed " + names.size() + " paths and " + keys.length + " features into " + dir);
+        }
+
+        /** Growable (path, MI) list used while building. */
+        private static class PostingList {
+            int size;
+            int[] paths = new int[4];
+            double[] mis = new double[4];
+
+            void add(int path, double mi) {
+                if (size == paths.length) {
+                    paths = Arrays.copyOf(paths, size * 2);
+                    mis = Arrays.copyOf(mis, size * 2);
+                }
+                paths[size] = path;
+                mis[size] = mi;
+                size++;
+            }
+        }
+
+        /** Index id of a path string, or -1. */
+        public int id(String path) {
+            byte[] b = path.getBytes(StandardCharsets.UTF_8);
+            return paths.find(b, 0, b.length);
+        }
+
+        public String name(int id) {
+            Text t = new Text();
+            paths.name(id, t);
+            return t.toString();
+        }
+
+        /** Lin similarity of two indexed paths, by a linear merge of their vectors. */
+        public double score(int p1, int p2) {
+            long o1 = paths.count(p1, Ids.SLOT_X), o2 = paths.count(p2, Ids.SLOT_X);
+            long n1 = paths.count(p1, Ids.SLOT_Y), n2 = paths.count(p2, Ids.SLOT_Y);
+            double numX = 0, numY = 0;
+            long i = 0, j = 0;
+            while (i < n1 && j < n2) {
+                long f1 = vectors.getLong(o1 + 16 + 16 * i);
+                long f2 = vectors.getLong(o2 + 16 + 16 * j);
+                if (f1 < f2) {
+                    i++;
+                } else if (f1 > f2) {
+                    j++;
+                } else {
+                    double sum = vectors.getDouble(o1 + 24 + 16 * i) + vectors.getDouble(o2 + 24 + 16 * j);
+                    if (Ids.high(f1) == Ids.SLOT_X)
+                        numX += sum;
+                    else
+                        numY += sum;
+                    i++;
+                    j++;
+                }
+            }
+            return Job4_FinalSim.similarity(numX, numY, vectors.getDouble(o1), vectors.getDouble(o1 + 8),
+                    vectors.getDouble(o2), vectors.getDouble(o2 + 8));
+        }
+
+        /** One top-k result. */
+        public static class Hit {
+            public final int path;
+            public final double score;
+
+            Hit(int path, double score) {
+                this.path = path;
+                this.score = score;
+            }
+        }
+
+        /**
+         * The k paths most similar to p, best first. Candidates are the
+         * paths sharing a feature with p, except through stop-features with
+         * more than dirt.query.max.postings postings; each candidate is then
+         * scored exactly. Ties keep the smaller id first. A k above the
+         * number of candidates returns them all.
+         */
+        public List<Hit> topK(int p, int k) {
+            if (++epoch == 0) {
+                Arrays.fill(seen, 0);
+                epoch = 1;
+            }
+            seen[p] = epoch;
+            int n = 0;
+            long o = paths.count(p, Ids.SLOT_X);
+            long size = paths.count(p, Ids.SLOT_Y);
+            for (long i = 0; i < size; i++) {
+                int f = findFeature(vectors.getLong(o + 16 + 16 * i));
+                if (f < 0)
+                    continue;
+                long count = features.getLong(24L * f + 16);
+                if (count > maxPostings)
+                    continue;
+                long start = features.getLong(24L * f + 8);
+                for (long j = 0; j < count; j++) {
+                    int q = (int) postings.getLong(start + 16 * j);
+                    if (seen[q] == epoch)
+                        continue;
+                    seen[q] = epoch;
+                    if (n == candidates.length)
+                        candidates = Arrays.copyOf(candidates, n * 2);
+                    candidates[n++] = q;
+                }
+            }
+            // Bounded heap whose head is the worst hit kept so far
+            Comparator<Hit> worstFirst = (a, b) -> a.score != b.score
+                    ? Double.compare(a.score, b.score) : Integer.compare(b.path, a.path);
+            // Never more hits than candidates, however large k is
+            k = Math.min(k, n);
+            PriorityQueue<Hit> heap = new PriorityQueue<>(k + 1, worstFirst);
+            for (int c = 0; c < n; c++) {
+                heap.add(new Hit(candidates[c], score(p, candidates[c])));
+                if (heap.size() > k)
+                    heap.poll();
+            }
+            List<Hit> result = new ArrayList<>(heap);
+            result.sort(worstFirst.reversed());
+            return result;
+        }
+
+        private int findFeature(long feature) {
+            int lo = 0, hi = numFeatures - 1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                long f = features.getLong(24L * mid);
+                if (f < feature)
+                    lo = mid + 1;
+                else if (f > feature)
+                    hi = mid - 1;
+                else
+                    return mid;
+            }
+            return -1;
+        }
+    }
+
+    // --- JOB 3: Overlap ---
+    public static class Job3_Overlap {
+        /**
+         * The test-set pairs, translated to corpus paths and then to path
+         * ids. The mapper and the reducer both build it from the cache files.
+         */
+        public static class TestPairs {
+            private final java.util.Map<String, List<String>> neighbors = new HashMap<>();
+            private final java.util.Map<Integer, List<Integer>> neighborIds = new HashMap<>();
+            private final StemCache stemmer;
+            private static final Set<String> AUX_WORDS = new HashSet<>(Arrays.asList(
+                "be", "am", "is", "are", "was", "were", "been", "being",
+                "do", "does", "did", "have", "has", "had", "will", "would",
+                "shall", "should", "can", "could", "may", "might", "must"));
+
+            private int pairCount, unconverted, notInCorpus;
+
+            /** Test pairs loaded, phrases that could not be translated, and translated paths the corpus lacks. */
+            public enum TestSetCounter { PAIRS, UNCONVERTED_PHRASES, PATHS_NOT_IN_CORPUS }
+
+            public TestPairs(StemCache stemmer) {
+                this.stemmer = stemmer;
+            }
+
+            /** Every task loads the same test set, so only one of them should report it. */
+            public void report(TaskInputOutputContext<?, ?, ?, ?> context) {
+                context.getCounter(TestSetCounter.PAIRS).increment(pairCount);
+                context.getCounter(TestSetCounter.UNCONVERTED_PHRASES).increment(unconverted);
+                context.getCounter(TestSetCounter.PATHS_NOT_IN_CORPUS).increment(notInCorpus);
+            }
+
+            /** Path id -> ids of the paths it is paired with, in both directions. */
+            public java.util.Map<Integer, List<Integer>> ids() {
+                return neighborIds;
+            }
+
+            /** The distinct pairs, packed as (smaller id, larger id). */
+            public Set<Long> pairs() {
+                Set<Long> pairs = new HashSet<>();
+                for (java.util.Map.Entry<Integer, List<Integer>> e : neighborIds.entrySet())
+                    for (int other : e.getValue())
+                        pairs.add(Ids.pack(Math.min(e.getKey(), other), Math.max(e.getKey(), other)));
+                return pairs;
+            }
+
+            /** Loads the test-set files and looks their paths up in the path table, both from the task's cache files. */
+            public void load(JobContext context) throws IOException {
+                URI[] files = context.getCacheFiles();
+                if (files != null) {
+                    int filesLoaded = 0;
+                    for (URI uri : files) {
+                        String name = new Path(uri).getName();
+                        if (name.startsWith("pathtable"))
+                            continue;
+                        try (BufferedReader br = new BufferedReader(new FileReader(name))) {
+                            loadTestSet(br, name);
+                            filesLoaded++;
+                        } catch (Exception e) {
+                            System.err.println("ERROR loading test set from " + uri + ": " + e.getMessage());
+                            throw new IOException("Failed to load critical test set file: " + uri, e);
+                        }
+                    }
+                    System.err.println("Loaded " + filesLoaded + " test set files");
+                }
+                if (neighbors.isEmpty()) {
+                    throw new IOException("No test set pairs loaded! Check cache files.");
+                }
+                System.err.println("Total neighbor pairs: " + neighbors.size());
+
+                NameTables pathTable = NameTables.openLocal(files, "pathtable");
+                java.util.Map<String, Integer> testPathIds = new HashMap<>();
+                Text name = new Text();
+                for (String path : neighbors.keySet()) {
+                    name.set(path);
+                    int id = pathTable.find(name);
+                    if (id >= 0)
+                        testPathIds.put(path, id);
+                }
+                resolve(testPathIds);
+                System.err.println("Test paths present in corpus: " + testPathIds.size());
+            }
+
+            /** Fills ids() from the given path ids; pairs with a path missing from them are dropped. */
+            void resolve(java.util.Map<String, Integer> testPathIds) {
+                for (java.util.Map.Entry<String, List<String>> e : neighbors.entrySet()) {
+                    Integer id = testPathIds.get(e.getKey());
+                    if (id == null) {
+                        notInCorpus++;
+                        continue;
+                    }
+                    for (String other : e.getValue()) {
+                        Integer otherId = testPathIds.get(other);
+                        if (otherId != null)
+                            neighborIds.computeIfAbsent(id, k -> new ArrayList<>()).add(otherId);
+                    }
+                }
+            }
+
+            /** The translated paths of the loaded test set. */
+            Set<String> paths() {
+                return neighbors.keySet();
+            }
+
+            /** Translates a test-set phrase such as "X cause Y" to its path string, or null. */
+            public String convertPhraseToPath(String phrase) {
+                String inner = phrase.replaceAll("^X\\s+", "")
+                                    .replaceAll("\\s+Y$", "")
+                                    .trim();
+                if (inner.isEmpty()) return null;
+
+                String[] w = inner.split("\\s+");
+
+                // Allow optional leading AUX
+                int start = 0;
+                if (w.length >= 2 && AUX_WORDS.contains(w[0].toLowerCase())) {
+                    start = 1;
+                }
+
+                int len = w.length - start;
+                if (len <= 0) return null;
+
+                if (len >= 2 && w[w.length - 1].equalsIgnoreCase("by")) {
+                    String verb = w[w.length - 2];
+                    String vStem = stemmer.stem(verb);
+                    return "N:<nsubjpass:V:" + vStem + ":>prep:P:by:>pobj:N";
+                }
+
+                // Active: "X VERB Y"
+                if (len == 1) {
+                    String vStem = stemmer.stem(w[start]);
+                    return "N:<nsubj:V:" + vStem + ":>dobj:N";
+                }
+
+                // Active with prep: "X VERB PREP Y"
+                if (len == 2) {
+                    String vStem = stemmer.stem(w[start]);
+                    String prep = w[start + 1].toLowerCase();
+                    return "N:<nsubj:V:" + vStem + ":>prep:P:" + prep + ":>pobj:N";
+                }
+                if (len == 3) {
+                    // Check if middle word is common particle
+                    String middle = w[start + 1].toLowerCase();
+                    if (isParticle(middle)) {
+                        // Treat as "verb-particle prep" -> collapse to "verb prep"
+                        String vStem = stemmer.stem(w[start] + middle); // composite stem
+                        String prep = w[start + 2].toLowerCase();
+                        return "N:<nsubj:V:" + vStem + ":>prep:P:" + prep + ":>pobj:N";
+                    }
+                }
+
+                // Warn about unhandled patterns
+                System.err.println("WARNING: Cannot convert phrase (len=" + len + "): " + phrase);
+                return null;
             }
-            if (m() > 1) k = j;
-        }
-
-        private final void step6() {
-            j = k;
-            if (b[k] == 'e') {
-                int a = m();
-                if (a > 1 || a == 1 && !cvc(k - 1)) k--;
+            
+            private boolean isParticle(String word) {
+                // Common verb particles
+                return word.equals("up") || word.equals("down") || word.equals("out") || 
+                       word.equals("in") || word.equals("off") || word.equals("on") ||
+                       word.equals("over") || word.equals("through");
             }
-            if (b[k] == 'l' && doublec(k) && m() > 1) k--;
-        }
 
-        public void stem() {
-            k = i - 1;
-            if (k > 1) {
-                step1();
-                step2();
-                step3();
-                step4();
-                step5();
-                step6();
+            void loadTestSet(BufferedReader br, String name) throws IOException {
+                int pairCount = 0;
+                String line;
+                while ((line = br.readLine()) != null) {
+                    String[] p = line.split("\t");
+                    if (p.length >= 2) {
+                        String path1 = convertPhraseToPath(p[0]);
+                        String path2 = convertPhraseToPath(p[1]);
+
+                        if (path1 != null && path2 != null) {
+                            neighbors.computeIfAbsent(path1, k -> new ArrayList<>()).add(path2);
+                            neighbors.computeIfAbsent(path2, k -> new ArrayList<>()).add(path1);
+                            pairCount++;
+                        } else {
+                            if (path1 == null) System.err.println("  Could not convert: " + p[0]);
+                            if (path2 == null) System.err.println("  Could not convert: " + p[1]);
+                            unconverted += (path1 == null ? 1 : 0) + (path2 == null ? 1 : 0);
+                        }
+                    }
+                }
+                System.err.println("Loaded " + pairCount + " pairs from " + name);
+                this.pairCount += pairCount;
             }
-            i_end = k + 1;
-            i = 0;
         }
-    }
 
-    public static class PathExtractor {
-        private final PorterStemmer stemmer = new PorterStemmer();
-        private static final Set<String> AUX = new HashSet<>(Arrays.asList(
-                "be", "am", "is", "are", "was", "were", "been", "being",
-                "do", "does", "did", "have", "has", "had", "will", "would",
-                "shall", "should", "can", "could", "may", "might", "must"));
+        /**
+         * The pairs to score, split into blocks of at most dirt.block.max.paths
+         * paths. A connected component of the pair graph that fits becomes
+         * one block; a larger one is cut into several, and only the paths on
+         * a cut are shipped more than once. Blocks are numbered so that
+         * block % reducers spreads the pair load evenly: the heaviest block
+         * goes to the least loaded reducer first. The mapper and the reducer
+         * build the same blocks from the same cache files.
+         */
+        public static class PairBlocks {
+            public static final String MAX_PATHS = "dirt.block.max.paths";
+            public static final int DEFAULT_MAX_PATHS = 500;
+
+            private final java.util.Map<Integer, int[]> pathBlocks = new HashMap<>();
+            private final java.util.Map<Integer, long[]> blockPairs = new HashMap<>();
+            private TestPairs testSet;
+
+            /** pairs: distinct packed (min, max) path pairs. */
+            public PairBlocks(long[] pairs, int maxPaths, int reducers) {
+                Arrays.sort(pairs);
+                // Union-find over the test paths only, renumbered 0..n-1 in id order
+                int[] pathIds = new int[2 * pairs.length];
+                for (int i = 0; i < pairs.length; i++) {
+                    pathIds[2 * i] = Ids.high(pairs[i]);
+                    pathIds[2 * i + 1] = Ids.low(pairs[i]);
+                }
+                Arrays.sort(pathIds);
+                int n = 0;
+                for (int i = 0; i < pathIds.length; i++)
+                    if (n == 0 || pathIds[i] != pathIds[n - 1])
+                        pathIds[n++] = pathIds[i];
+                int[] parent = new int[n];
+                for (int i = 0; i < n; i++)
+                    parent[i] = i;
+                for (long pair : pairs) {
+                    int a = find(parent, Arrays.binarySearch(pathIds, 0, n, Ids.high(pair)));
+                    int b = find(parent, Arrays.binarySearch(pathIds, 0, n, Ids.low(pair)));
+                    if (a != b)
+                        parent[Math.max(a, b)] = Math.min(a, b);
+                }
+                java.util.Map<Integer, List<Long>> components = new LinkedHashMap<>();
+                for (long pair : pairs)
+                    components.computeIfAbsent(find(parent, Arrays.binarySearch(pathIds, 0, n, Ids.high(pair))),
+                            k -> new ArrayList<>()).add(pair);
 
-        public List<String> extractPaths(List<Token> tokens) {
-            List<String> results = new ArrayList<>();
-            List<Integer> nouns = new ArrayList<>();
-            for (int i = 0; i < tokens.size(); i++) {
-                if (tokens.get(i).isNoun())
-                    nouns.add(i);
-            }
-
-            for (int i = 0; i < nouns.size(); i++) {
-                for (int j = i + 1; j < nouns.size(); j++) {
-                    int src = nouns.get(i);
-                    int dst = nouns.get(j);
-                    List<Integer> path = getShortestPath(tokens, src, dst);
-                    if (path != null && isValid(tokens, path)) {
-                        String pStr = buildPath(tokens, path);
-                        String x = stemmer.stem(tokens.get(src).word);
-                        String y = stemmer.stem(tokens.get(dst).word);
-                        results.add(pStr + "\t" + x + "\t" + y);
+                List<long[]> blocks = new ArrayList<>();
+                List<Integer> weights = new ArrayList<>();
+                Set<Integer> paths = new HashSet<>();
+                List<Long> current = new ArrayList<>();
+                for (List<Long> component : components.values()) {
+                    for (long pair : component) {
+                        int added = (paths.contains(Ids.high(pair)) ? 0 : 1) + (paths.contains(Ids.low(pair)) ? 0 : 1);
+                        if (!current.isEmpty() && paths.size() + added > maxPaths) {
+                            addBlock(blocks, weights, current, paths);
+                        }
+                        current.add(pair);
+                        paths.add(Ids.high(pair));
+                        paths.add(Ids.low(pair));
                     }
+                    addBlock(blocks, weights, current, paths);
                 }
-            }
-            return results;
-        }
 
-        private boolean isValid(List<Token> toks, List<Integer> path) {
-            for (int idx : path) {
-                Token t = toks.get(idx);
-                if (t.isVerb() && !AUX.contains(t.word.toLowerCase()))
-                    return true;
+                Integer[] order = new Integer[blocks.size()];
+                for (int i = 0; i < order.length; i++)
+                    order[i] = i;
+                Arrays.sort(order, (x, y) -> Integer.compare(weights.get(y), weights.get(x)));
+                long[] load = new long[reducers];
+                int[] assigned = new int[reducers];
+                java.util.Map<Integer, List<Integer>> blocksOfPath = new HashMap<>();
+                for (int i : order) {
+                    int r = 0;
+                    for (int c = 1; c < reducers; c++)
+                        if (load[c] < load[r])
+                            r = c;
+                    load[r] += weights.get(i);
+                    int id = assigned[r]++ * reducers + r;
+                    long[] blockPairList = blocks.get(i);
+                    blockPairs.put(id, blockPairList);
+                    Set<Integer> seen = new HashSet<>();
+                    for (long pair : blockPairList) {
+                        if (seen.add(Ids.high(pair)))
+                            blocksOfPath.computeIfAbsent(Ids.high(pair), k -> new ArrayList<>()).add(id);
+                        if (seen.add(Ids.low(pair)))
+                            blocksOfPath.computeIfAbsent(Ids.low(pair), k -> new ArrayList<>()).add(id);
+                    }
+                }
+                for (java.util.Map.Entry<Integer, List<Integer>> e : blocksOfPath.entrySet()) {
+                    int[] ids = new int[e.getValue().size()];
+                    for (int i = 0; i < ids.length; i++)
+                        ids[i] = e.getValue().get(i);
+                    pathBlocks.put(e.getKey(), ids);
+                }
+                System.err.println("Split " + pairs.length + " pairs over " + pathBlocks.size() + " paths into "
+                        + blocks.size() + " blocks for " + reducers + " reducers");
             }
-            return false;
-        }
 
-        private String buildPath(List<Token> toks, List<Integer> path) {
-            StringBuilder sb = new StringBuilder();
-            for (int i = 0; i < path.size(); i++) {
-                int curr = path.get(i);
-                Token t = toks.get(curr);
-                if (i == 0 || i == path.size() - 1)
-                    sb.append("N");
-                else if (t.isVerb())
-                    sb.append("V:").append(stemmer.stem(t.word));
-                else if (t.isPrep())
-                    sb.append("P:").append(t.word.toLowerCase());
-                else
-                    sb.append("W:").append(t.word.toLowerCase());
+            private static void addBlock(List<long[]> blocks, List<Integer> weights, List<Long> current, Set<Integer> paths) {
+                long[] block = new long[current.size()];
+                for (int i = 0; i < block.length; i++)
+                    block[i] = current.get(i);
+                blocks.add(block);
+                weights.add(block.length + paths.size());
+                current.clear();
+                paths.clear();
+            }
 
-                if (i < path.size() - 1) {
-                    int next = path.get(i + 1);
-                    Token tNext = toks.get(next);
-                    String rel = (t.head - 1 == next) ? "<" + t.dep : ">" + tNext.dep;
-                    sb.append(":").append(rel).append(":");
+            /**
+             * Root of x, halving the path on the way up. The root is the
+             * smallest index of its component, so also its smallest path id.
+             */
+            private static int find(int[] parent, int x) {
+                while (parent[x] != x) {
+                    parent[x] = parent[parent[x]];
+                    x = parent[x];
                 }
+                return x;
+            }
+
+            /** Blocks the path's vector is shipped to, or null if it is in no pair. */
+            public int[] blocksOf(int path) {
+                return pathBlocks.get(path);
+            }
+
+            /** The block's pairs, sorted. */
+            public long[] pairsOf(int block) {
+                return blockPairs.get(block);
+            }
+
+            /** The test set the blocks were built from, when built by load(). */
+            public TestPairs testSet() {
+                return testSet;
+            }
+
+            /** Builds the blocks of the test pairs. */
+            public static PairBlocks load(JobContext context, StemCache stemmer) throws IOException {
+                Configuration conf = context.getConfiguration();
+                TestPairs test = new TestPairs(stemmer);
+                test.load(context);
+                Set<Long> pairs = test.pairs();
+                long[] all = new long[pairs.size()];
+                int i = 0;
+                for (long pair : pairs)
+                    all[i++] = pair;
+                PairBlocks blocks = new PairBlocks(all, conf.getInt(MAX_PATHS, DEFAULT_MAX_PATHS),
+                        Math.max(1, conf.getInt(MRJobConfig.NUM_REDUCES, 1)));
+                blocks.testSet = test;
+                return blocks;
             }
-            return sb.toString();
         }
 
-        private List<Integer> getShortestPath(List<Token> tokens, int src, int dst) {
-            int n = tokens.size();
-            List<Integer>[] adj = new List[n];
-            for (int i = 0; i < n; i++)
-                adj[i] = new ArrayList<>();
-            for (int i = 0; i < n; i++) {
-                int h = tokens.get(i).head - 1;
-                if (h >= 0 && h < n) {
-                    adj[i].add(h);
-                    adj[h].add(i);
-                }
+        /** Ships each path's vector once to every block it has pairs in. */
+        public static class Map extends Mapper<NullWritable, FeatureMI, BlockFeatureKey, DoubleWritable> {
+            private PairBlocks blocks;
+            private final BlockFeatureKey outKey = new BlockFeatureKey();
+            private final DoubleWritable outVal = new DoubleWritable();
+            private StemCache stemmer;
+
+            @Override
+            protected void setup(Context context) throws IOException {
+                stemmer = StemCache.fromConf(context.getConfiguration());
+                blocks = PairBlocks.load(context, stemmer);
             }
-            int[] prev = new int[n];
-            Arrays.fill(prev, -1);
-            Queue<Integer> q = new LinkedList<>();
-            q.add(src);
-            prev[src] = src;
-            while (!q.isEmpty()) {
-                int u = q.poll();
-                if (u == dst)
-                    break;
-                for (int v : adj[u]) {
-                    if (prev[v] == -1) {
-                        prev[v] = u;
-                        q.add(v);
-                    }
+
+            @Override
+            protected void map(NullWritable key, FeatureMI value, Context context) throws IOException, InterruptedException {
+                int[] ids = blocks.blocksOf(value.path);
+                if (ids == null)
+                    return;
+                outVal.set(value.mi);
+                for (int block : ids) {
+                    outKey.set(block, value.slot, value.word, value.path);
+                    context.write(outKey, outVal);
                 }
             }
-            if (prev[dst] == -1)
-                return null;
-            List<Integer> path = new ArrayList<>();
-            int curr = dst;
-            while (curr != src) {
-                path.add(curr);
-                curr = prev[curr];
+
+            @Override
+            protected void cleanup(Context context) {
+                stemmer.report(context);
             }
-            path.add(src);
-            Collections.reverse(path);
-            return path;
         }
-    }
 
-    // --- JOB 1: Extraction ---
-    public static class Job1_Extraction {
-        public static class Map extends Mapper<LongWritable, Text, Text, LongWritable> {
-            private final PathExtractor extractor = new PathExtractor();
-            private final LongWritable outVal = new LongWritable();
-            private final Text outKey = new Text();
+        /** LSH mode: test pairs with a non-zero exact score in Job 3, and how many of them the LSH scoring job found. */
+        public enum RecallCounter { TEST_PAIRS_SCORED, TEST_PAIRS_FOUND }
+
+        /**
+         * Feature runs matched, pairs found sharing a feature in a run,
+         * and the block pairs written, skipped for having no features, or
+         * dropped below dirt.min.similarity.
+         */
+        public enum OverlapCounter { FEATURE_RUNS, INTERSECTIONS, PAIRS_SCORED, PAIRS_WITHOUT_FEATURES, PAIRS_BELOW_MIN }
+
+        /**
+         * Scores every pair of a block in one pass over its features and
+         * writes the final similarity, so no separate Job 4 runs. A block
+         * receives every feature of its paths, so the SumMI denominators
+         * are added up here and no side table is read. In LSH mode this
+         * job scores the test pairs as the exact reference for the recall
+         * counters; Job3_LSH scores the candidates.
+         */
+        public static class Reduce extends Reducer<BlockFeatureKey, DoubleWritable, Text, DoubleWritable> {
+            private final DoubleWritable outVal = new DoubleWritable();
+            private NameTables pathTable;
+            private double minSimilarity;
+            private PairBlocks blocks;
+            private boolean lsh;
+            private int[] postPaths = new int[64];
+            private int[] postPos = new int[64];
+            private double[] postMIs = new double[64];
+            // Per-block scratch, reused: by block-local path position (blockPaths is sorted) or by pair
+            private int[] blockPaths = new int[64];
+            private int[] firstPair = new int[32];
+            private double[] sumMIs = new double[64];
+            private boolean[] hasFeatures = new boolean[32];
+            private double[] numX = new double[32];
+            private double[] numY = new double[32];
+            private long runs, intersections, scored, withoutFeatures, belowMin;
 
             @Override
-            protected void map(LongWritable key, Text value, Context context) throws IOException, InterruptedException {
-                String line = value.toString();
-                String[] parts = line.split("\t");
+            protected void setup(Context context) throws IOException {
+                Configuration conf = context.getConfiguration();
+                lsh = MODE_LSH.equals(conf.get(MODE));
+                minSimilarity = conf.getDouble(Job4_FinalSim.MIN_SIMILARITY, 0.0);
+                blocks = PairBlocks.load(context, StemCache.fromConf(conf));
+                if (context.getTaskAttemptID().getTaskID().getId() == 0)
+                    blocks.testSet().report(context);
+                pathTable = NameTables.openLocal(context.getCacheFiles(), "pathtable");
+            }
 
-                if (parts.length < 3)
+            /**
+             * Values arrive sorted by (slot, word, path), so each feature
+             * comes as a run of the block's paths that have it. Each run is
+             * matched against the block's pairs; only the run, the per-pair
+             * sums and the per-path SumMIs are held. A path's MIs arrive in
+             * (slot, word) order, the order Job 2 adds them in, so its SumMI
+             * is the same double Job 2 writes to summi.
+             */
+            @Override
+            protected void reduce(BlockFeatureKey key, Iterable<DoubleWritable> values, Context context)
+                    throws IOException, InterruptedException {
+                long[] pairs = blocks.pairsOf(key.block);
+                if (pairs == null)
                     return;
+                int m = indexPaths(pairs);
 
-                String textContent = parts[1];
-                long count = 1;
-                try {
-                    count = Long.parseLong(parts[2]);
-                } catch (NumberFormatException e) {
-                    count = 1;
+                int slot = -1, word = -1, n = 0;
+                // The secondary sort updates key's slot, word and path as the values advance
+                for (DoubleWritable val : values) {
+                    if (key.slot != slot || key.word != word) {
+                        if (n > 0) {
+                            runs++;
+                            intersections += match(pairs, firstPair, postPaths, postPos, postMIs, n,
+                                    slot == Ids.SLOT_X ? numX : numY);
+                        }
+                        slot = key.slot;
+                        word = key.word;
+                        n = 0;
+                    }
+                    if (n == postPaths.length) {
+                        postPaths = Arrays.copyOf(postPaths, n * 2);
+                        postPos = Arrays.copyOf(postPos, n * 2);
+                        postMIs = Arrays.copyOf(postMIs, n * 2);
+                    }
+                    // The mapper sends a block only the features of its own paths
+                    int pos = Arrays.binarySearch(blockPaths, 0, m, key.path);
+                    postPaths[n] = key.path;
+                    postPos[n] = pos;
+                    postMIs[n] = val.get();
+                    n++;
+                    sumMIs[2 * pos + slot] += val.get();
+                    hasFeatures[pos] = true;
                 }
+                runs++;
+                intersections += match(pairs, firstPair, postPaths, postPos, postMIs, n, slot == Ids.SLOT_X ? numX : numY);
 
-                List<Token> tokens = parse(textContent);
-                if (tokens == null || tokens.isEmpty())
-                    return;
-
-                for (String ex : extractor.extractPaths(tokens)) {
-                    String[] f = ex.split("\t", -1);
-                    if (f.length < 3)
+                for (int i = 0; i < pairs.length; i++) {
+                    long pair = pairs[i];
+                    int p1 = Ids.high(pair);
+                    int p2 = Ids.low(pair);
+                    int a = Arrays.binarySearch(blockPaths, 0, m, p1);
+                    int b = Arrays.binarySearch(blockPaths, 0, m, p2);
+                    if (!hasFeatures[a] && !hasFeatures[b]) {
+                        withoutFeatures++;
+                        continue;
+                    }
+                    if (lsh && numX[i] > 0 && numY[i] > 0)
+                        context.getCounter(RecallCounter.TEST_PAIRS_SCORED).increment(1);
+                    double sim = Job4_FinalSim.similarity(numX[i], numY[i], sumMIs[2 * a + Ids.SLOT_X],
+                            sumMIs[2 * a + Ids.SLOT_Y], sumMIs[2 * b + Ids.SLOT_X], sumMIs[2 * b + Ids.SLOT_Y]);
+                    if (sim < minSimilarity) {
+                        belowMin++;
                         continue;
+                    }
+                    scored++;
+                    outVal.set(sim);
+                    context.write(Job4_FinalSim.pairName(pathTable.name(p1), pathTable.name(p2)), outVal);
+                }
+            }
 
-                    emit(context, "TRIPLE\t" + f[0] + "\tX\t" + f[1], count);
-                    emit(context, "TRIPLE\t" + f[0] + "\tY\t" + f[2], count);
-                    emit(context, "SW_MARGIN\tX\t" + f[1], count);
-                    emit(context, "SW_MARGIN\tY\t" + f[2], count);
-                    emit(context, "PS_MARGIN\t" + f[0] + "\tX", count);
-                    emit(context, "PS_MARGIN\t" + f[0] + "\tY", count);
-                    emit(context, "GLOBAL", count * 2);
+            /**
+             * Sets up the scratch arrays for a block: its distinct paths in id
+             * order, the first pair of each path, zeroed SumMIs and pair sums.
+             * Returns the number of paths.
+             */
+            private int indexPaths(long[] pairs) {
+                if (blockPaths.length < 2 * pairs.length)
+                    blockPaths = new int[2 * pairs.length];
+                for (int i = 0; i < pairs.length; i++) {
+                    blockPaths[2 * i] = Ids.high(pairs[i]);
+                    blockPaths[2 * i + 1] = Ids.low(pairs[i]);
+                }
+                Arrays.sort(blockPaths, 0, 2 * pairs.length);
+                int m = 0;
+                for (int i = 0; i < 2 * pairs.length; i++)
+                    if (m == 0 || blockPaths[i] != blockPaths[m - 1])
+                        blockPaths[m++] = blockPaths[i];
+                if (firstPair.length < m) {
+                    firstPair = new int[m];
+                    sumMIs = new double[2 * m];
+                    hasFeatures = new boolean[m];
+                }
+                Arrays.fill(firstPair, 0, m, -1);
+                Arrays.fill(sumMIs, 0, 2 * m, 0.0);
+                Arrays.fill(hasFeatures, 0, m, false);
+                // Pairs are sorted, so the pairs whose first path is p form one run
+                for (int i = pairs.length - 1; i >= 0; i--)
+                    firstPair[Arrays.binarySearch(blockPaths, 0, m, Ids.high(pairs[i]))] = i;
+                if (numX.length < pairs.length) {
+                    numX = new double[pairs.length];
+                    numY = new double[pairs.length];
                 }
+                Arrays.fill(numX, 0, pairs.length, 0.0);
+                Arrays.fill(numY, 0, pairs.length, 0.0);
+                return m;
             }
 
-            private void emit(Context ctx, String k, long v) throws IOException, InterruptedException {
-                outKey.set(k);
-                outVal.set(v);
-                ctx.write(outKey, outVal);
+            @Override
+            protected void cleanup(Context context) {
+                context.getCounter(OverlapCounter.FEATURE_RUNS).increment(runs);
+                context.getCounter(OverlapCounter.INTERSECTIONS).increment(intersections);
+                context.getCounter(OverlapCounter.PAIRS_SCORED).increment(scored);
+                context.getCounter(OverlapCounter.PAIRS_WITHOUT_FEATURES).increment(withoutFeatures);
+                context.getCounter(OverlapCounter.PAIRS_BELOW_MIN).increment(belowMin);
             }
 
-            private List<Token> parse(String ngram) {
-                List<Token> tokens = new ArrayList<>();
-                StringTokenizer st = new StringTokenizer(ngram, " ");
-                while (st.hasMoreTokens()) {
-                    String tokenStr = st.nextToken();
-                    int lastSlash = tokenStr.lastIndexOf('/');
-                    if (lastSlash == -1)
-                        continue;
-                    int secondLastSlash = tokenStr.lastIndexOf('/', lastSlash - 1);
-                    if (secondLastSlash == -1)
-                        continue;
-                    int thirdLastSlash = tokenStr.lastIndexOf('/', secondLastSlash - 1);
-                    if (thirdLastSlash == -1)
-                        continue;
-                    try {
-                        String headStr = tokenStr.substring(lastSlash + 1);
-                        String dep = tokenStr.substring(secondLastSlash + 1, lastSlash);
-                        String pos = tokenStr.substring(thirdLastSlash + 1, secondLastSlash);
-                        String word = tokenStr.substring(0, thirdLastSlash);
-                        tokens.add(new Token(word, pos, dep, Integer.parseInt(headStr)));
-                    } catch (Exception e) {
+            /**
+             * Adds one feature's MI sums to every block pair whose two paths
+             * both have it, and returns how many pairs that was.
+             * postPaths[0, n) are the feature's paths in id order, postPos
+             * their block-local positions and postMIs their MIs.
+             */
+            static int match(long[] pairs, int[] firstPair, int[] postPaths, int[] postPos,
+                             double[] postMIs, int n, double[] num) {
+                int matched = 0;
+                for (int i = 0; i < n; i++) {
+                    int first = firstPair[postPos[i]];
+                    if (first < 0)
                         continue;
+                    for (int p = first; p < pairs.length && Ids.high(pairs[p]) == postPaths[i]; p++) {
+                        int j = Arrays.binarySearch(postPaths, i + 1, n, Ids.low(pairs[p]));
+                        if (j >= 0) {
+                            num[p] += postMIs[i] + postMIs[j];
+                            matched++;
+                        }
                     }
                 }
-                return tokens;
+                return matched;
             }
         }
+    }
+
+    // --- JOB 3 (all-pairs mode): Inverted Feature Index ---
+    /**
+     * Replaces Job 3 when dirt.mode=allpairs. The step2 vectors are
+     * inverted into feature -> (path, MI) postings, and every two paths
+     * sharing a feature get that feature's partial numerator. Job 4 then
+     * sums the partials per pair and scores every pair in the corpus.
+     */
+    public static class Job3_AllPairs {
+        public static final String MAX_POSTINGS = "dirt.allpairs.max.postings";
+        public static final int DEFAULT_MAX_POSTINGS = 1000;
+
+        public enum PostingCounter { FEATURES, SKIPPED_FEATURES, SKIPPED_POSTINGS, PAIR_CONTRIBUTIONS }
+
+        public static class Map extends Mapper<NullWritable, FeatureMI, LongWritable, FeatureMI> {
+            private final LongWritable outKey = new LongWritable();
 
-        public static class Combine extends Reducer<Text, LongWritable, Text, LongWritable> {
             @Override
-            protected void reduce(Text key, Iterable<LongWritable> values, Context ctx)
+            protected void map(NullWritable key, FeatureMI value, Context context)
                     throws IOException, InterruptedException {
-                long sum = 0;
-                for (LongWritable v : values)
-                    sum += v.get();
-                ctx.write(key, new LongWritable(sum));
+                outKey.set(Ids.pack(value.slot, value.word)); // Slot:Word
+                context.write(outKey, value);
             }
         }
 
-        public static class Reduce extends Reducer<Text, LongWritable, Text, LongWritable> {
-            private MultipleOutputs<Text, LongWritable> mos;
+        /**
+         * Buffers at most dirt.allpairs.max.postings postings of a feature.
+         * A longer list belongs to a stop-feature such as a very common
+         * noun; it is skipped as a whole, since its pairs would grow
+         * quadratically while adding little to any one similarity.
+         */
+        public static class Reduce extends Reducer<LongWritable, FeatureMI, NullWritable, PairNumerator> {
+            private int maxPostings;
+            private int[] paths;
+            private double[] mis;
+            private final PairNumerator outVal = new PairNumerator();
 
             @Override
             protected void setup(Context context) {
-                mos = new MultipleOutputs<>(context);
+                maxPostings = context.getConfiguration().getInt(MAX_POSTINGS, DEFAULT_MAX_POSTINGS);
+                paths = new int[Math.min(maxPostings, 1024)];
+                mis = new double[paths.length];
             }
 
             @Override
-            protected void reduce(Text key, Iterable<LongWritable> values, Context ctx)
+            protected void reduce(LongWritable key, Iterable<FeatureMI> values, Context context)
                     throws IOException, InterruptedException {
-                long sum = 0;
-                for (LongWritable v : values)
-                    sum += v.get();
-                String k = key.toString();
-                if (k.startsWith("TRIPLE"))
-                    mos.write("triples", key, new LongWritable(sum));
-                else if (k.startsWith("PS_MARGIN"))
-                    mos.write("pathmargins", key, new LongWritable(sum));
-                else if (k.startsWith("SW_MARGIN"))
-                    mos.write("wordmargins", key, new LongWritable(sum));
-                else if (k.startsWith("GLOBAL"))
-                    mos.write("global", key, new LongWritable(sum));
+                boolean slotX = Ids.high(key.get()) == Ids.SLOT_X;
+                // One pass: the values are copied out up to the cap and only counted past it
+                int n = 0;
+                long postings = 0;
+                for (FeatureMI val : values) {
+                    if (postings++ >= maxPostings)
+                        continue;
+                    if (n == paths.length) {
+                        paths = Arrays.copyOf(paths, Math.min(maxPostings, n * 2));
+                        mis = Arrays.copyOf(mis, paths.length);
+                    }
+                    paths[n] = val.path;
+                    mis[n] = val.mi;
+                    n++;
+                }
+                if (postings > maxPostings) {
+                    context.getCounter(PostingCounter.SKIPPED_FEATURES).increment(1);
+                    context.getCounter(PostingCounter.SKIPPED_POSTINGS).increment(postings);
+                    return;
+                }
+                context.getCounter(PostingCounter.FEATURES).increment(1);
+                for (int i = 0; i < n; i++) {
+                    for (int j = i + 1; j < n; j++) {
+                        double sum = mis[i] + mis[j];
+                        int p1 = Math.min(paths[i], paths[j]);
+                        int p2 = Math.max(paths[i], paths[j]);
+                        outVal.set(p1, p2, slotX ? sum : 0.0, slotX ? 0.0 : sum);
+                        context.write(NullWritable.get(), outVal);
+                    }
+                }
+                context.getCounter(PostingCounter.PAIR_CONTRIBUTIONS).increment((long) n * (n - 1) / 2);
             }
+        }
+    }
+
+    // --- JOB 3 (LSH mode): MinHash Candidates ---
+    /**
+     * Candidate generation and scoring for dirt.mode=lsh. Each (path, slot)
+     * MI vector gets a weighted MinHash signature of bands x rows values,
+     * and two paths whose signatures agree on every row of some band of
+     * the same slot become a candidate pair. The distinct candidates are
+     * then joined to both paths' vectors through the shuffle and scored
+     * exactly. More bands raise recall; more rows per band make a band
+     * harder to share and cut candidates.
+     */
+    public static class Job3_LSH {
+        public static final String BANDS = "dirt.lsh.bands";
+        public static final String ROWS = "dirt.lsh.rows";
+        public static final String MAX_BUCKET = "dirt.lsh.max.bucket";
+        public static final int DEFAULT_BANDS = 20;
+        public static final int DEFAULT_ROWS = 4;
+        public static final int DEFAULT_MAX_BUCKET = 1000;
+
+        /** Candidate pairs counts one per bucket a pair shares; distinct pairs counts each pair once. */
+        public enum LshCounter { SIGNATURES, BUCKETS, SKIPPED_BUCKETS, CANDIDATE_PAIRS, DISTINCT_PAIRS }
+
+        public static class SignatureMap extends Mapper<NullWritable, FeatureMI, LongWritable, FeatureMI> {
+            private final LongWritable outKey = new LongWritable();
 
             @Override
-            protected void cleanup(Context ctx) throws IOException, InterruptedException {
-                mos.close();
+            protected void map(NullWritable key, FeatureMI value, Context context)
+                    throws IOException, InterruptedException {
+                outKey.set(Ids.pack(value.path, value.slot));
+                context.write(outKey, value);
             }
         }
-    }
 
-    // --- JOB 2: MI Calculation ---
-    public static class Job2_MI {
-        public static class Map extends Mapper<LongWritable, Text, PathSlotKey, Text> {
-            private java.util.Map<String, Long> wordMargins = new HashMap<>();
+        /**
+         * Exponential-race weighted MinHash: under hash function i a vector
+         * keeps the word minimizing -ln(u_i(word)) / MI. A word wins with
+         * probability proportional to its MI, so two vectors agree about as
+         * often as their MI-weighted Jaccard similarity. Only the running
+         * minima are kept, whatever the vector length.
+         */
+        public static class SignatureReduce extends Reducer<LongWritable, FeatureMI, LongWritable, IntWritable> {
+            private int bands;
+            private int rows;
+            private double[] minValue;
+            private int[] minWord;
+            private final LongWritable bucket = new LongWritable();
+            private final IntWritable outPath = new IntWritable();
 
             @Override
-            protected void setup(Context context) throws IOException {
-                URI[] files = context.getCacheFiles();
-                if (files != null) {
-                    for (URI uri : files) {
-                        try (BufferedReader br = new BufferedReader(
-                                new FileReader(new File(new Path(uri).getName())))) {
-                            String line;
-                            while ((line = br.readLine()) != null) {
-                                String[] p = line.split("\t");
-                                if (p.length >= 4 && line.startsWith("SW_MARGIN")) {
-                                    wordMargins.put(p[1] + "|" + p[2], Long.parseLong(p[3]));
-                                }
-                            }
-                        } catch (Exception e) {
-                            System.err.println("ERROR loading word margins from " + uri + ": " + e.getMessage());
-                            throw new IOException("Failed to load critical cache file: " + uri, e);
+            protected void setup(Context context) {
+                Configuration conf = context.getConfiguration();
+                bands = conf.getInt(BANDS, DEFAULT_BANDS);
+                rows = conf.getInt(ROWS, DEFAULT_ROWS);
+                minValue = new double[bands * rows];
+                minWord = new int[bands * rows];
+            }
+
+            @Override
+            protected void reduce(LongWritable key, Iterable<FeatureMI> values, Context context)
+                    throws IOException, InterruptedException {
+                Arrays.fill(minValue, Double.POSITIVE_INFINITY);
+                for (FeatureMI val : values) {
+                    for (int i = 0; i < minValue.length; i++) {
+                        double v = -Math.log(uniform(i, val.word)) / val.mi;
+                        if (v < minValue[i]) {
+                            minValue[i] = v;
+                            minWord[i] = val.word;
                         }
                     }
                 }
-                if (wordMargins.isEmpty()) {
-                    throw new IOException("No word margins loaded! Check cache files.");
+                int slot = Ids.low(key.get());
+                outPath.set(Ids.high(key.get()));
+                for (int b = 0; b < bands; b++) {
+                    long h = mix((long) slot * bands + b);
+                    for (int r = 0; r < rows; r++)
+                        h = mix(h ^ minWord[b * rows + r]);
+                    bucket.set(h);
+                    context.write(bucket, outPath);
                 }
-                System.err.println("Loaded " + wordMargins.size() + " word margin entries");
+                context.getCounter(LshCounter.SIGNATURES).increment(1);
             }
+        }
+
+        /** Uniform double in (0, 1] for hash function i and a word id. */
+        static double uniform(int i, int word) {
+            long h = mix(((long) i << 32) | (word & 0xffffffffL));
+            return ((h >>> 11) + 1) * 0x1.0p-53;
+        }
+
+        /** SplitMix64 finalizer. */
+        static long mix(long z) {
+            z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+            z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+            return z ^ (z >>> 31);
+        }
+
+        /**
+         * Pairs up the paths sharing a bucket. A bucket with more than
+         * dirt.lsh.max.bucket paths is skipped, like a stop-feature in
+         * all-pairs mode. A pair colliding in several bands is written once
+         * per band; DistinctPairs drops the duplicates.
+         */
+        public static class BucketReduce extends Reducer<LongWritable, IntWritable, LongWritable, NullWritable> {
+            private int maxBucket;
+            private int[] paths = new int[64];
+            private final LongWritable pair = new LongWritable();
 
             @Override
-            protected void map(LongWritable key, Text value, Context context) throws IOException, InterruptedException {
-                String line = value.toString();
-                String[] p = line.split("\t");
+            protected void setup(Context context) {
+                maxBucket = context.getConfiguration().getInt(MAX_BUCKET, DEFAULT_MAX_BUCKET);
+            }
+
+            @Override
+            protected void reduce(LongWritable key, Iterable<IntWritable> values, Context context)
+                    throws IOException, InterruptedException {
+                int n = 0;
+                for (IntWritable val : values) {
+                    if (n == maxBucket) {
+                        context.getCounter(LshCounter.SKIPPED_BUCKETS).increment(1);
+                        return;
+                    }
+                    if (n == paths.length)
+                        paths = Arrays.copyOf(paths, n * 2);
+                    paths[n++] = val.get();
+                }
+                context.getCounter(LshCounter.BUCKETS).increment(1);
+                for (int i = 0; i < n; i++) {
+                    for (int j = i + 1; j < n; j++) {
+                        pair.set(Ids.pack(Math.min(paths[i], paths[j]), Math.max(paths[i], paths[j])));
+                        context.write(pair, NullWritable.get());
+                    }
+                }
+                context.getCounter(LshCounter.CANDIDATE_PAIRS).increment((long) n * (n - 1) / 2);
+            }
+        }
+
+        /** Writes each packed pair once; the combiner and the reducer of the distinct pairs job. */
+        public static class DistinctPairs extends Reducer<LongWritable, NullWritable, LongWritable, NullWritable> {
+            @Override
+            protected void reduce(LongWritable key, Iterable<NullWritable> values, Context context)
+                    throws IOException, InterruptedException {
+                context.write(key, NullWritable.get());
+            }
+        }
+
+        /** Counts the pairs the distinct pairs reducer writes. */
+        public static class DistinctPairsReduce extends DistinctPairs {
+            @Override
+            protected void reduce(LongWritable key, Iterable<NullWritable> values, Context context)
+                    throws IOException, InterruptedException {
+                super.reduce(key, values, context);
+                context.getCounter(LshCounter.DISTINCT_PAIRS).increment(1);
+            }
+        }
+
+        /**
+         * Join job map over the vectors. Both join inputs are keyed by
+         * (path, tag) packed into a long: tag 0 for a feature of the path,
+         * partner + 1 for a pair. Grouping and partitioning use only the
+         * path, so a reduce call sees the path's features first and then
+         * its partners.
+         */
+        public static class VectorMap extends Mapper<NullWritable, FeatureMI, LongWritable, FeatureMI> {
+            private final LongWritable outKey = new LongWritable();
+
+            @Override
+            protected void map(NullWritable key, FeatureMI value, Context context)
+                    throws IOException, InterruptedException {
+                outKey.set(Ids.pack(value.path, 0));
+                context.write(outKey, value);
+            }
+        }
+
+        /** Keys a distinct pair under both of its paths, (p1, p2 + 1) and (p2, p1 + 1). The value is unused. */
+        public static class PairMap extends Mapper<LongWritable, NullWritable, LongWritable, FeatureMI> {
+            private final LongWritable outKey = new LongWritable();
+            private final FeatureMI none = new FeatureMI();
+
+            @Override
+            protected void map(LongWritable key, NullWritable value, Context context)
+                    throws IOException, InterruptedException {
+                int p1 = Ids.high(key.get());
+                int p2 = Ids.low(key.get());
+                outKey.set(Ids.pack(p1, p2 + 1));
+                context.write(outKey, none);
+                outKey.set(Ids.pack(p2, p1 + 1));
+                context.write(outKey, none);
+            }
+        }
+
+        /** Groups the join keys on the path. */
+        public static class PathGroupingComparator extends WritableComparator {
+            protected PathGroupingComparator() {
+                super(LongWritable.class, true);
+            }
+
+            @Override
+            public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
+                return Integer.compare(readInt(b1, s1), readInt(b2, s2));
+            }
+
+            @Override
+            public int compare(WritableComparable a, WritableComparable b) {
+                return Integer.compare(Ids.high(((LongWritable) a).get()), Ids.high(((LongWritable) b).get()));
+            }
+        }
 
-                if (line.startsWith("PS_MARGIN") && p.length >= 4) {
-                    context.write(new PathSlotKey(p[1], p[2], 0), new Text(p[3]));
-                } else if (line.startsWith("TRIPLE") && p.length >= 5) {
-                    Long sw = wordMargins.get(p[2] + "|" + p[3]);
-                    if (sw != null) {
-                        context.write(new PathSlotKey(p[1], p[2], 1), new Text(p[3] + "\t" + p[4] + "\t" + sw));
+        /** Partitions the join keys on the path, consistent with the grouping comparator. */
+        public static class PathPartitioner<V> extends Partitioner<LongWritable, V> {
+            @Override
+            public int getPartition(LongWritable key, V value, int numPartitions) {
+                return (Ids.high(key.get()) & Integer.MAX_VALUE) % numPartitions;
+            }
+        }
+
+        /**
+         * Builds the path's sorted vector from its features, then writes it
+         * once for every pair the path is in, keyed by the packed pair. Only
+         * one vector is held.
+         */
+        public static class JoinReduce extends Reducer<LongWritable, FeatureMI, LongWritable, PathVector> {
+            private final PathVector vector = new PathVector();
+            private final LongWritable pair = new LongWritable();
+
+            @Override
+            protected void reduce(LongWritable key, Iterable<FeatureMI> values, Context context)
+                    throws IOException, InterruptedException {
+                int path = Ids.high(key.get());
+                vector.clear();
+                boolean sorted = false;
+                // The secondary sort updates key's tag as the values advance
+                for (FeatureMI val : values) {
+                    int tag = Ids.low(key.get());
+                    if (tag == 0) {
+                        vector.add(val.slot, val.word, val.mi);
+                        continue;
                     }
+                    if (!sorted) {
+                        vector.sort();
+                        sorted = true;
+                    }
+                    int partner = tag - 1;
+                    pair.set(Ids.pack(Math.min(path, partner), Math.max(path, partner)));
+                    context.write(pair, vector);
                 }
             }
         }
 
-        public static class Reduce extends Reducer<PathSlotKey, Text, Text, Text> {
-            private long N = 1;
+        /**
+         * Scores a pair from the two vectors the join wrote for it, with
+         * the same merge as the vector store. The features and the SumMIs
+         * are added up in (slot, word) order, as in Job 3, so scores match
+         * Job 3 bit for bit. Test pairs with a non-zero score count as found
+         * for the recall counters.
+         */
+        public static class ScoreReduce extends Reducer<LongWritable, PathVector, Text, DoubleWritable> {
+            private final PathVector first = new PathVector();
+            private final DoubleWritable outVal = new DoubleWritable();
+            private Set<Long> testPairs;
+            private NameTables pathTable;
+            private double minSimilarity;
+            private long scored, belowMin;
 
             @Override
-            protected void setup(Context context) {
-                N = context.getConfiguration().getLong("GLOBAL_N", 1);
-                System.err.println("Using GLOBAL_N = " + N);
+            protected void setup(Context context) throws IOException {
+                Configuration conf = context.getConfiguration();
+                minSimilarity = conf.getDouble(Job4_FinalSim.MIN_SIMILARITY, 0.0);
+                pathTable = NameTables.openLocal(context.getCacheFiles(), "pathtable");
+                Job3_Overlap.TestPairs test = new Job3_Overlap.TestPairs(StemCache.fromConf(conf));
+                test.load(context);
+                testPairs = test.pairs();
             }
 
             @Override
-            protected void reduce(PathSlotKey key, Iterable<Text> values, Context context)
+            protected void reduce(LongWritable key, Iterable<PathVector> values, Context context)
                     throws IOException, InterruptedException {
-                
-                long psCount = 0;
-                List<String> tripleRecords = new ArrayList<>();
-                
-                for (Text val : values) {
-                    String valStr = val.toString();
-                    
-                    // Check if this is a margin (no tabs) or triple (has tabs)
-                    if (valStr.contains("\t")) {
-                        // This is a triple record
-                        tripleRecords.add(valStr);
-                    } else {
-                        // This is a margin record
-                        try {
-                            psCount = Long.parseLong(valStr);
-                        } catch (NumberFormatException e) {
-                            System.err.println("ERROR parsing margin count: " + valStr);
-                        }
-                    }
-                }
-                
-                if (psCount == 0) {
-                    System.err.println("WARNING: No margin found for path=" + key.path + " slot=" + key.slot);
+                Iterator<PathVector> it = values.iterator();
+                first.set(it.next());
+                if (!it.hasNext())
+                    return;
+                double sim = PathVector.similarity(first, it.next());
+                if (sim > 0 && testPairs.contains(key.get()))
+                    context.getCounter(Job3_Overlap.RecallCounter.TEST_PAIRS_FOUND).increment(1);
+                if (sim < minSimilarity) {
+                    belowMin++;
                     return;
                 }
-                
-                for (String tripleData : tripleRecords) {
-                    String[] data = tripleData.split("\t");
-                    
-                    if (data.length < 3)
-                        continue;
-
-                    try {
-                        String word = data[0];
-                        long tripleCount = Long.parseLong(data[1]);
-                        long swCount = Long.parseLong(data[2]);
-
-                        double numerator = (double) tripleCount * N;
-                        double denominator = (double) psCount * swCount;
+                scored++;
+                outVal.set(sim);
+                context.write(Job4_FinalSim.pairName(pathTable.name(Ids.high(key.get())),
+                        pathTable.name(Ids.low(key.get()))), outVal);
+            }
 
-                        if (numerator > 0 && denominator > 0) {
-                            double mi = Math.log(numerator / denominator);
-                            if (mi > 0.001) {
-                                context.write(key.path, new Text(key.slot.toString() + "\t" + word + "\t" + mi));
-                            }
-                        }
-                    } catch (Exception e) {
-                        System.err.println("ERROR calculating MI for triple: " + tripleData + " - " + e.getMessage());
-                    }
-                }
+            @Override
+            protected void cleanup(Context context) {
+                context.getCounter(Job4_FinalSim.FinalCounter.PAIRS_SCORED).increment(scored);
+                context.getCounter(Job4_FinalSim.FinalCounter.PAIRS_BELOW_MIN).increment(belowMin);
             }
         }
     }
 
-    // --- JOB 2.5: SumMI ---
-    public static class Job25_SumMI {
-        public static class Map extends Mapper<LongWritable, Text, Text, DoubleWritable> {
+    // --- JOB 4: Final Similarity ---
+    public static class Job4_FinalSim {
+        /** Pairs scoring below this are not written; the default 0 keeps every pair. */
+        public static final String MIN_SIMILARITY = "dirt.min.similarity";
+
+        /** Pairs written and pairs dropped below dirt.min.similarity, by either reducer. */
+        public enum FinalCounter { PAIRS_SCORED, PAIRS_BELOW_MIN }
+
+        public static class Map extends Mapper<NullWritable, PairNumerator, LongWritable, PairNumerator> {
+            private final LongWritable outKey = new LongWritable();
+
             @Override
-            protected void map(LongWritable key, Text value, Context context) throws IOException, InterruptedException {
-                String[] parts = value.toString().split("\t");
-                if (parts.length < 4)
-                    return;
-                context.write(new Text(parts[0] + "\t" + parts[1]), new DoubleWritable(Double.parseDouble(parts[3])));
+            protected void map(NullWritable key, PairNumerator value, Context context)
+                    throws IOException, InterruptedException {
+                outKey.set(Ids.pack(value.path1, value.path2));
+                context.write(outKey, value);
             }
         }
 
-        public static class Reduce extends Reducer<Text, DoubleWritable, Text, DoubleWritable> {
+        /** Sums the partial numerators of a pair; all-pairs mode emits one per shared feature. */
+        public static class Combine extends Reducer<LongWritable, PairNumerator, LongWritable, PairNumerator> {
+            private final PairNumerator sum = new PairNumerator();
+
             @Override
-            protected void reduce(Text key, Iterable<DoubleWritable> values, Context context)
+            protected void reduce(LongWritable key, Iterable<PairNumerator> values, Context context)
                     throws IOException, InterruptedException {
-                double sum = 0;
-                for (DoubleWritable v : values)
-                    sum += v.get();
-                context.write(key, new DoubleWritable(sum));
+                double numX = 0, numY = 0;
+                for (PairNumerator val : values) {
+                    numX += val.numX;
+                    numY += val.numY;
+                }
+                sum.set(Ids.high(key.get()), Ids.low(key.get()), numX, numY);
+                context.write(key, sum);
             }
         }
-    }
 
-    // --- JOB 3: Overlap ---
-    public static class Job3_Overlap {
-        public static class Map extends Mapper<LongWritable, Text, Text, Text> {
-            private java.util.Map<String, List<String>> neighbors = new HashMap<>();
-            private final PorterStemmer stemmer = new PorterStemmer();
-            private static final Set<String> AUX_WORDS = new HashSet<>(Arrays.asList(
-                "be", "am", "is", "are", "was", "were", "been", "being",
-                "do", "does", "did", "have", "has", "had", "will", "would",
-                "shall", "should", "can", "could", "may", "might", "must"));
+        public static class Reduce extends Reducer<LongWritable, PairNumerator, Text, DoubleWritable> {
+            private java.util.Map<Long, Double> sumMIs = new HashMap<>();
+            private NameTables pathTable;
+            private double minSimilarity;
+            private long scored, belowMin;
 
             @Override
             protected void setup(Context context) throws IOException {
-                URI[] files = context.getCacheFiles();
-                if (files != null) {
-                    int filesLoaded = 0;
-                    for (URI uri : files) {
-                        try {
-                            loadTestSet(new File(new Path(uri).getName()));
-                            filesLoaded++;
-                        } catch (Exception e) {
-                            System.err.println("ERROR loading test set from " + uri + ": " + e.getMessage());
-                            throw new IOException("Failed to load critical test set file: " + uri, e);
-                        }
-                    }
-                    System.err.println("Loaded " + filesLoaded + " test set files");
-                }
-                if (neighbors.isEmpty()) {
-                    throw new IOException("No test set pairs loaded! Check cache files.");
+                Configuration conf = context.getConfiguration();
+                minSimilarity = conf.getDouble(MIN_SIMILARITY, 0.0);
+                sumMIs = loadSumMIs(context);
+                pathTable = NameTables.openLocal(context.getCacheFiles(), "pathtable");
+                if (pathTable.size() == 0) {
+                    throw new IOException("No path table loaded! Check cache files.");
                 }
-                System.err.println("Total neighbor pairs: " + neighbors.size());
             }
 
-            
-            private String convertPhraseToPath(String phrase) {
-                String inner = phrase.replaceAll("^X\\s+", "")
-                                    .replaceAll("\\s+Y$", "")
-                                    .trim();
-                if (inner.isEmpty()) return null;
+            @Override
+            protected void reduce(LongWritable key, Iterable<PairNumerator> values, Context context)
+                    throws IOException, InterruptedException {
+                int p1 = Ids.high(key.get());
+                int p2 = Ids.low(key.get());
+                double numX = 0, numY = 0;
+                for (PairNumerator val : values) {
+                    numX += val.numX;
+                    numY += val.numY;
+                }
+                double sim = similarity(sumMIs, p1, p2, numX, numY);
+                if (sim < minSimilarity) {
+                    belowMin++;
+                    return;
+                }
+                scored++;
+                context.write(pairName(pathTable.name(p1), pathTable.name(p2)), new DoubleWritable(sim));
+            }
 
-                String[] w = inner.split("\\s+");
+            @Override
+            protected void cleanup(Context context) {
+                context.getCounter(FinalCounter.PAIRS_SCORED).increment(scored);
+                context.getCounter(FinalCounter.PAIRS_BELOW_MIN).increment(belowMin);
+            }
+        }
 
-                // Allow optional leading AUX
-                int start = 0;
-                if (w.length >= 2 && AUX_WORDS.contains(w[0].toLowerCase())) {
-                    start = 1;
-                }
+        /**
+         * Job 4 reducer when Job 5 follows (dirt.topk > 0). Writes each
+         * scored pair once per direction, keyed by path id, instead of
+         * naming the pair.
+         */
+        public static class NeighbourReduce extends Reducer<LongWritable, PairNumerator, IntWritable, ScoredPath> {
+            private java.util.Map<Long, Double> sumMIs;
+            private double minSimilarity;
+            private final IntWritable outKey = new IntWritable();
+            private final ScoredPath outValue = new ScoredPath();
+            private long scored, belowMin;
 
-                int len = w.length - start;
-                if (len <= 0) return null;
+            @Override
+            protected void setup(Context context) throws IOException {
+                minSimilarity = context.getConfiguration().getDouble(MIN_SIMILARITY, 0.0);
+                sumMIs = loadSumMIs(context);
+            }
 
-                if (len >= 2 && w[w.length - 1].equalsIgnoreCase("by")) {
-                    String verb = w[w.length - 2];
-                    String vStem = stemmer.stem(verb);
-                    return "N:<nsubjpass:V:" + vStem + ":>prep:P:by:>pobj:N";
+            @Override
+            protected void reduce(LongWritable key, Iterable<PairNumerator> values, Context context)
+                    throws IOException, InterruptedException {
+                int p1 = Ids.high(key.get());
+                int p2 = Ids.low(key.get());
+                double numX = 0, numY = 0;
+                for (PairNumerator val : values) {
+                    numX += val.numX;
+                    numY += val.numY;
                 }
-
-                // Active: "X VERB Y"
-                if (len == 1) {
-                    String vStem = stemmer.stem(w[start]);
-                    return "N:<nsubj:V:" + vStem + ":>dobj:N";
+                double sim = similarity(sumMIs, p1, p2, numX, numY);
+                if (sim < minSimilarity) {
+                    belowMin++;
+                    return;
                 }
+                scored++;
+                outKey.set(p1);
+                outValue.set(p2, sim);
+                context.write(outKey, outValue);
+                outKey.set(p2);
+                outValue.set(p1, sim);
+                context.write(outKey, outValue);
+            }
 
-                // Active with prep: "X VERB PREP Y"
-                if (len == 2) {
-                    String vStem = stemmer.stem(w[start]);
-                    String prep = w[start + 1].toLowerCase();
-                    return "N:<nsubj:V:" + vStem + ":>prep:P:" + prep + ":>pobj:N";
-                }
-                if (len == 3) {
-                    // Check if middle word is common particle
-                    String middle = w[start + 1].toLowerCase();
-                    if (isParticle(middle)) {
-                        // Treat as "verb-particle prep" -> collapse to "verb prep"
-                        String vStem = stemmer.stem(w[start] + middle); // composite stem
-                        String prep = w[start + 2].toLowerCase();
-                        return "N:<nsubj:V:" + vStem + ":>prep:P:" + prep + ":>pobj:N";
+            @Override
+            protected void cleanup(Context context) {
+                context.getCounter(FinalCounter.PAIRS_SCORED).increment(scored);
+                context.getCounter(FinalCounter.PAIRS_BELOW_MIN).increment(belowMin);
+            }
+        }
+
+        /** Reads the summi files of the distributed cache, keyed by Ids.pack(path, slot). */
+        static java.util.Map<Long, Double> loadSumMIs(JobContext context) throws IOException {
+            Configuration conf = context.getConfiguration();
+            java.util.Map<Long, Double> sumMIs = new HashMap<>();
+            URI[] files = context.getCacheFiles();
+            if (files != null) {
+                int filesLoaded = 0;
+                LongWritable pathSlot = new LongWritable();
+                DoubleWritable sum = new DoubleWritable();
+                for (URI uri : files) {
+                    if (!new Path(uri).getName().startsWith("summi"))
+                        continue;
+                    try (SequenceFile.Reader reader = Dictionary.openLocal(conf, uri)) {
+                        while (reader.next(pathSlot, sum))
+                            sumMIs.put(pathSlot.get(), sum.get());
+                        filesLoaded++;
+                    } catch (Exception e) {
+                        System.err.println("ERROR loading sumMI from " + uri + ": " + e.getMessage());
+                        throw new IOException("Failed to load critical sumMI file: " + uri, e);
                     }
                 }
-
-                // Warn about unhandled patterns
-                System.err.println("WARNING: Cannot convert phrase (len=" + len + "): " + phrase);
-                return null;
+                System.err.println("Loaded sumMI data from " + filesLoaded + " files");
             }
-            
-            private boolean isParticle(String word) {
-                // Common verb particles
-                return word.equals("up") || word.equals("down") || word.equals("out") || 
-                       word.equals("in") || word.equals("off") || word.equals("on") ||
-                       word.equals("over") || word.equals("through");
+            if (sumMIs.isEmpty()) {
+                throw new IOException("No sumMI data loaded! Check cache files.");
             }
+            System.err.println("Total sumMI entries: " + sumMIs.size());
+            return sumMIs;
+        }
 
+        /** Lin similarity: the geometric mean of the X and Y overlaps over the SumMI denominators. */
+        public static double similarity(java.util.Map<Long, Double> sumMIs, int p1, int p2, double numX, double numY) {
+            return similarity(numX, numY,
+                    sumMIs.getOrDefault(Ids.pack(p1, Ids.SLOT_X), 0.0), sumMIs.getOrDefault(Ids.pack(p1, Ids.SLOT_Y), 0.0),
+                    sumMIs.getOrDefault(Ids.pack(p2, Ids.SLOT_X), 0.0), sumMIs.getOrDefault(Ids.pack(p2, Ids.SLOT_Y), 0.0));
+        }
 
+        public static double similarity(double numX, double numY, double s1X, double s1Y, double s2X, double s2Y) {
+            double simX = (s1X + s2X > 0) ? numX / (s1X + s2X) : 0;
+            double simY = (s1Y + s2Y > 0) ? numY / (s1Y + s2Y) : 0;
+            return Math.sqrt(simX * simY);
+        }
 
-            private void loadTestSet(File file) throws IOException {
-                int pairCount = 0;
-                try (BufferedReader br = new BufferedReader(new FileReader(file))) {
-                    String line;
-                    while ((line = br.readLine()) != null) {
-                        String[] p = line.split("\t");
-                        if (p.length >= 2) {
-                            String path1 = convertPhraseToPath(p[0]);
-                            String path2 = convertPhraseToPath(p[1]);
-
-                            if (path1 != null && path2 != null) {
-                                neighbors.computeIfAbsent(path1, k -> new ArrayList<>()).add(path2);
-                                neighbors.computeIfAbsent(path2, k -> new ArrayList<>()).add(path1);
-                                pairCount++;
-                            } else {
-                                if (path1 == null) System.err.println("  Could not convert: " + p[0]);
-                                if (path2 == null) System.err.println("  Could not convert: " + p[1]);
-                            }
-                        }
+        /** Output key "name1 \t name2". Ids follow byte order; keep the pair in the same string order as before. */
+        public static Text pairName(String name1, String name2) {
+            if (name1.compareTo(name2) > 0) {
+                String t = name1;
+                name1 = name2;
+                name2 = t;
+            }
+            return new Text(name1 + "\t" + name2);
+        }
+    }
+
+    // --- JOB 5: Top-K Neighbours ---
+    /**
+     * Optional last job of all-pairs mode (-D dirt.topk=K). Keeps the K
+     * most similar neighbours of every path, so the final output holds K
+     * lines per path instead of every scored pair. The combiner already
+     * cuts each map's output to K neighbours per path.
+     */
+    public static class Job5_TopK {
+        public static final String K = "dirt.topk";
+
+        /** Paths ranked, neighbours that reached the reducer, and neighbours written. */
+        public enum NeighbourCounter { PATHS, CANDIDATES, KEPT }
+
+        /**
+         * Min-heap of at most k neighbours whose head is the worst one
+         * kept. A candidate that cannot beat the head is dropped without
+         * touching the heap. Ties in score keep the smaller id, so the
+         * combiner and the reducer agree on which neighbours survive.
+         */
+        static class BoundedHeap {
+            private final int k;
+            private final int[] paths;
+            private final double[] scores;
+            private int size;
+
+            BoundedHeap(int k) {
+                this.k = k;
+                paths = new int[k];
+                scores = new double[k];
+            }
+
+            void clear() {
+                size = 0;
+            }
+
+            void offer(int path, double score) {
+                if (size < k) {
+                    int i = size++;
+                    paths[i] = path;
+                    scores[i] = score;
+                    while (i > 0 && worse(i, (i - 1) / 2)) {
+                        swap(i, (i - 1) / 2);
+                        i = (i - 1) / 2;
+                    }
+                } else if (score > scores[0] || (score == scores[0] && path < paths[0])) {
+                    paths[0] = path;
+                    scores[0] = score;
+                    for (int i = 0;;) {
+                        int c = 2 * i + 1;
+                        if (c >= size)
+                            break;
+                        if (c + 1 < size && worse(c + 1, c))
+                            c++;
+                        if (!worse(c, i))
+                            break;
+                        swap(i, c);
+                        i = c;
                     }
                 }
-                System.err.println("Loaded " + pairCount + " pairs from " + file.getName());
             }
 
-            @Override
-            protected void map(LongWritable key, Text value, Context context) throws IOException, InterruptedException {
-                String[] parts = value.toString().split("\t");
-                if (parts.length < 4)
-                    return;
-                String path = parts[0];
-                if (neighbors.containsKey(path)) {
-                    String featureVal = parts[1] + "\t" + parts[2] + "\t" + parts[3];
-                    for (String other : neighbors.get(path)) {
-                        String p1 = (path.compareTo(other) <= 0) ? path : other;
-                        String p2 = (path.compareTo(other) <= 0) ? other : path;
-                        context.write(new Text(p1 + "\t" + p2), new Text(path + "\t" + featureVal));
+            /** Empties the heap into out, best first, and returns the count. */
+            int drain(ScoredPath[] out) {
+                int n = size;
+                while (size > 0) {
+                    size--;
+                    out[size].set(paths[0], scores[0]);
+                    swap(0, size);
+                    for (int i = 0;;) {
+                        int c = 2 * i + 1;
+                        if (c >= size)
+                            break;
+                        if (c + 1 < size && worse(c + 1, c))
+                            c++;
+                        if (!worse(c, i))
+                            break;
+                        swap(i, c);
+                        i = c;
                     }
                 }
+                return n;
+            }
+
+            private boolean worse(int a, int b) {
+                return scores[a] < scores[b] || (scores[a] == scores[b] && paths[a] > paths[b]);
+            }
+
+            private void swap(int a, int b) {
+                int p = paths[a];
+                paths[a] = paths[b];
+                paths[b] = p;
+                double s = scores[a];
+                scores[a] = scores[b];
+                scores[b] = s;
             }
         }
 
-        public static class Reduce extends Reducer<Text, Text, Text, Text> {
-            @Override
-            protected void reduce(Text key, Iterable<Text> values, Context context)
-                    throws IOException, InterruptedException {
-                String[] keyPaths = key.toString().split("\t");
-                if (keyPaths.length < 2)
-                    return;
-                String p1Key = keyPaths[0];
-                String p2Key = keyPaths[1];
+        static ScoredPath[] buffer(int k) {
+            ScoredPath[] out = new ScoredPath[k];
+            for (int i = 0; i < k; i++)
+                out[i] = new ScoredPath();
+            return out;
+        }
 
-                java.util.Map<String, Double> v1 = new HashMap<>();
-                java.util.Map<String, Double> v2 = new HashMap<>();
+        public static class Combine extends Reducer<IntWritable, ScoredPath, IntWritable, ScoredPath> {
+            private BoundedHeap heap;
+            private ScoredPath[] best;
 
-                for (Text val : values) {
-                    String[] parts = val.toString().split("\t");
-                    if (parts.length < 4)
-                        continue;
-                    String recordPath = parts[0];
-                    String feature = parts[1] + ":" + parts[2]; // Slot:Word
-                    double mi = Double.parseDouble(parts[3]);
-
-                    if (recordPath.equals(p1Key))
-                        v1.put(feature, mi);
-                    else if (recordPath.equals(p2Key))
-                        v2.put(feature, mi);
-                }
-
-                double numX = 0.0, numY = 0.0;
-                for (String feat : v1.keySet()) {
-                    if (v2.containsKey(feat)) {
-                        double sum = v1.get(feat) + v2.get(feat);
-                        if (feat.startsWith("X:"))
-                            numX += sum;
-                        else if (feat.startsWith("Y:"))
-                            numY += sum;
-                    }
-                }
-                context.write(key, new Text(numX + "\t" + numY));
+            @Override
+            protected void setup(Context context) {
+                int k = context.getConfiguration().getInt(K, 0);
+                heap = new BoundedHeap(k);
+                best = buffer(k);
             }
-        }
-    }
 
-    // --- JOB 4: Final Similarity ---
-    public static class Job4_FinalSim {
-        public static class Map extends Mapper<LongWritable, Text, Text, Text> {
             @Override
-            protected void map(LongWritable key, Text value, Context context) throws IOException, InterruptedException {
-                String[] parts = value.toString().split("\t");
-                if (parts.length < 4)
-                    return;
-                context.write(new Text(parts[0] + "\t" + parts[1]), new Text(parts[2] + "\t" + parts[3]));
+            protected void reduce(IntWritable key, Iterable<ScoredPath> values, Context context)
+                    throws IOException, InterruptedException {
+                heap.clear();
+                for (ScoredPath val : values)
+                    heap.offer(val.path, val.score);
+                int n = heap.drain(best);
+                for (int i = 0; i < n; i++)
+                    context.write(key, best[i]);
             }
         }
 
-        public static class Reduce extends Reducer<Text, Text, Text, DoubleWritable> {
-            private java.util.Map<String, Double> sumMIs = new HashMap<>();
+        /** Writes "path \t neighbour \t score" for the K best neighbours, best first. */
+        public static class Reduce extends Reducer<IntWritable, ScoredPath, Text, DoubleWritable> {
+            private NameTables pathTable;
+            private BoundedHeap heap;
+            private ScoredPath[] best;
+            private final Text outKey = new Text();
+            private final DoubleWritable outValue = new DoubleWritable();
+            private long paths, candidates, kept;
 
             @Override
             protected void setup(Context context) throws IOException {
-                URI[] files = context.getCacheFiles();
-                if (files != null) {
-                    int filesLoaded = 0;
-                    for (URI uri : files) {
-                        try (BufferedReader br = new BufferedReader(
-                                new FileReader(new File(new Path(uri).getName())))) {
-                            String line;
-                            while ((line = br.readLine()) != null) {
-                                String[] p = line.split("\t");
-                                if (p.length >= 3) {
-                                    sumMIs.put(p[0] + "\t" + p[1], Double.parseDouble(p[2]));
-                                }
-                            }
-                            filesLoaded++;
-                        } catch (Exception e) {
-                            System.err.println("ERROR loading sumMI from " + uri + ": " + e.getMessage());
-                            throw new IOException("Failed to load critical sumMI file: " + uri, e);
-                        }
-                    }
-                    System.err.println("Loaded sumMI data from " + filesLoaded + " files");
-                }
-                if (sumMIs.isEmpty()) {
-                    throw new IOException("No sumMI data loaded! Check cache files.");
+                Configuration conf = context.getConfiguration();
+                int k = conf.getInt(K, 0);
+                heap = new BoundedHeap(k);
+                best = buffer(k);
+                pathTable = NameTables.openLocal(context.getCacheFiles(), "pathtable");
+                if (pathTable.size() == 0) {
+                    throw new IOException("No path table loaded! Check cache files.");
                 }
-                System.err.println("Total sumMI entries: " + sumMIs.size());
             }
 
             @Override
-            protected void reduce(Text key, Iterable<Text> values, Context context)
+            protected void reduce(IntWritable key, Iterable<ScoredPath> values, Context context)
                     throws IOException, InterruptedException {
-                String[] paths = key.toString().split("\t");
-                if (paths.length < 2)
-                    return;
-                double numX = 0, numY = 0;
-                for (Text val : values) {
-                    String[] nums = val.toString().split("\t");
-                    numX += Double.parseDouble(nums[0]);
-                    numY += Double.parseDouble(nums[1]);
+                heap.clear();
+                for (ScoredPath val : values) {
+                    heap.offer(val.path, val.score);
+                    candidates++;
                 }
-                double s1X = sumMIs.getOrDefault(paths[0] + "\tX", 0.0);
-                double s1Y = sumMIs.getOrDefault(paths[0] + "\tY", 0.0);
-                double s2X = sumMIs.getOrDefault(paths[1] + "\tX", 0.0);
-                double s2Y = sumMIs.getOrDefault(paths[1] + "\tY", 0.0);
-
-                double simX = (s1X + s2X > 0) ? numX / (s1X + s2X) : 0;
-                double simY = (s1Y + s2Y > 0) ? numY / (s1Y + s2Y) : 0;
+                int n = heap.drain(best);
+                paths++;
+                kept += n;
+                String name = pathTable.name(key.get());
+                for (int i = 0; i < n; i++) {
+                    outKey.set(name + "\t" + pathTable.name(best[i].path));
+                    outValue.set(best[i].score);
+                    context.write(outKey, outValue);
+                }
+            }
 
-                context.write(key, new DoubleWritable(Math.sqrt(simX * simY)));
+            @Override
+            protected void cleanup(Context context) {
+                context.getCounter(NeighbourCounter.PATHS).increment(paths);
+                context.getCounter(NeighbourCounter.CANDIDATES).increment(candidates);
+                context.getCounter(NeighbourCounter.KEPT).increment(kept);
             }
         }
     }
 
     // --- MAIN DRIVER ---
+    /** "testset" scores only the test-set pairs; "allpairs" scores every pair sharing a feature. */
+    public static final String MODE = "dirt.mode";
+    public static final String MODE_TESTSET = "testset";
+    public static final String MODE_ALLPAIRS = "allpairs";
+    /** Like allpairs, but only the pairs proposed by MinHash/LSH are scored. */
+    public static final String MODE_LSH = "lsh";
+    /** Where the pipeline writes its stage outputs, the final output and the run report. */
+    public static final String OUTPUT_BASE = "dirt.output.base";
+    /** Directory holding positive-preds.txt and negative-preds.txt. */
+    public static final String TESTSET_BASE = "dirt.testset.base";
+    /** Default dirt.min.similarity in all-pairs and LSH mode, where most pairs share only a feature or two. */
+    public static final double ALLPAIRS_MIN_SIMILARITY = 0.01;
+
     @Override
     public int run(String[] args) throws Exception {
         Configuration conf = getConf();
 
+        String outputBase = conf.get(OUTPUT_BASE, "s3://lexico-syntactic-similarities/output");
+        String testSetBase = conf.get(TESTSET_BASE, "s3://lexico-syntactic-similarities/TestSet");
+
+        if (args.length >= 2 && args[0].equals("score"))
+            return score(conf, args[1], args.length >= 3 ? args[2] : outputBase + "/store");
+        if (args.length >= 3 && args[0].equals("index"))
+            return index(conf, args[1], args[2]);
+        if (args.length >= 2 && args[0].equals("query"))
+            return new QueryServer(conf, args[1]).query();
+        if (args.length >= 2 && args[0].equals("serve"))
+            return new QueryServer(conf, args[1]).serve(args.length >= 3 ? Integer.parseInt(args[2]) : 8080);
+        if (args.length >= 2 && args[0].equals("local"))
+            return local(conf, args[1], args.length >= 3 ? args[2] : outputBase + "/local", testSetBase);
+        if (args.length >= 2 && args[0].equals("report"))
+            return report(conf, args[1], args.length >= 3 ? args[2] : null);
         if (args.length < 1) {
             System.err.println("Usage: DirtDriver <input_path>");
+            System.err.println("       DirtDriver score <pairs_file> [<store_dir>]");
+            System.err.println("       DirtDriver index <store_dir> <local_index_dir>");
+            System.err.println("       DirtDriver query <local_index_dir>");
+            System.err.println("       DirtDriver serve <local_index_dir> [<port>]");
+            System.err.println("       DirtDriver local <input_path> [<output_dir>]");
+            System.err.println("       DirtDriver report <run_report> [<baseline_report>]");
             return 1;
         }
         String input = args[0];
 
-        String outputBase = "s3://lexico-syntactic-similarities/output";
-        String testSetBase = "s3://lexico-syntactic-similarities/TestSet";
+        RunReport report = new RunReport(input, conf.get(MODE, MODE_TESTSET));
+        int status = runPipeline(conf, input, outputBase, testSetBase, report);
+        report.write(conf, new Path(outputBase), status == 0);
+        RunReport.print(report.json(), System.err);
+        String baseline = conf.get(RunReport.BASELINE);
+        if (baseline != null) {
+            List<String> regressions = RunReport.regressions(report.json(),
+                    RunReport.read(conf, new Path(baseline)), conf.getDouble(RunReport.THRESHOLD, RunReport.DEFAULT_THRESHOLD));
+            System.err.println(regressions.size() + " regressions against " + baseline);
+            for (String line : regressions)
+                System.err.println("  " + line);
+        }
+        return status;
+    }
+
+    /**
+     * Plans the jobs of the configured mode as a stage graph and runs it,
+     * recording each job in the report. Stages already complete for the
+     * same inputs and configuration are skipped.
+     */
+    private int runPipeline(Configuration conf, String input, String outputBase, String testSetBase,
+                            RunReport report) throws Exception {
+        String mode = conf.get(MODE, MODE_TESTSET);
+        if (!MODE_TESTSET.equals(mode) && !MODE_ALLPAIRS.equals(mode) && !MODE_LSH.equals(mode)) {
+            System.err.println("Unknown " + MODE + ": " + mode);
+            return 1;
+        }
+        if (!MODE_TESTSET.equals(mode))
+            conf.setIfUnset(Job4_FinalSim.MIN_SIMILARITY, String.valueOf(ALLPAIRS_MIN_SIMILARITY));
 
-        String out1 = outputBase + "/step1";
-        String out2 = outputBase + "/step2";
-        String out25 = outputBase + "/step2_5";
-        String out3 = outputBase + "/step3";
-        String out4 = outputBase + "/final";
+        Path out1 = new Path(outputBase + "/step1");
+        Path out15 = new Path(outputBase + "/step1_5");
+        Path out2 = new Path(outputBase + "/step2");
+        Path out3 = new Path(outputBase + "/step3");
+        Path out4 = new Path(outputBase + "/final");
+        StageGraph graph = new StageGraph(conf);
+        long[] recall = new long[2]; // LSH mode: test pairs scored, and found by LSH
 
         // JOB 1
-        System.err.println("Starting Job 1: Extraction");
-        Job j1 = Job.getInstance(conf, "DIRT_1_Extraction");
-        j1.setJarByClass(DirtDriver.class);
-        j1.setMapperClass(Job1_Extraction.Map.class);
-        j1.setCombinerClass(Job1_Extraction.Combine.class);
-        j1.setReducerClass(Job1_Extraction.Reduce.class);
-        j1.setOutputKeyClass(Text.class);
-        j1.setOutputValueClass(LongWritable.class);
-        MultipleOutputs.addNamedOutput(j1, "triples", TextOutputFormat.class, Text.class, LongWritable.class);
-        MultipleOutputs.addNamedOutput(j1, "pathmargins", TextOutputFormat.class, Text.class, LongWritable.class);
-        MultipleOutputs.addNamedOutput(j1, "wordmargins", TextOutputFormat.class, Text.class, LongWritable.class);
-        MultipleOutputs.addNamedOutput(j1, "global", TextOutputFormat.class, Text.class, LongWritable.class);
-        FileInputFormat.addInputPaths(j1, input);
-        FileOutputFormat.setOutputPath(j1, new Path(out1));
-        if (!j1.waitForCompletion(true))
-            return 1;
+        StageGraph.Stage s1 = graph.add("DIRT_1_Extraction", out1, j1 -> {
+            j1.setMapperClass(Job1_Extraction.Map.class);
+            j1.setCombinerClass(Job1_Extraction.Combine.class);
+            j1.setReducerClass(Job1_Extraction.Reduce.class);
+            j1.setOutputKeyClass(ExtractionKey.class);
+            j1.setOutputValueClass(LongWritable.class);
+            j1.setOutputFormatClass(SequenceFileOutputFormat.class);
+            MultipleOutputs.addNamedOutput(j1, "triples", SequenceFileOutputFormat.class, ExtractionKey.class, LongWritable.class);
+            MultipleOutputs.setCountersEnabled(j1, true);
+            FileInputFormat.addInputPaths(j1, input);
+        }).onDone((job, marker) -> {
+            // N is kept in the marker, so Job 2 still gets it when Job 1 is skipped
+            if (job != null) {
+                long n = job.getCounters().findCounter(Job1_Extraction.TotalCounter.GLOBAL_N).getValue();
+                marker.setProperty("GLOBAL_N", String.valueOf(n == 0 ? 1 : n));
+            }
+            long globalN = Long.parseLong(marker.getProperty("GLOBAL_N", "1"));
+            System.err.println("GLOBAL_N from Job 1 counters = " + globalN);
+            conf.setLong("GLOBAL_N", globalN);
+        });
+        for (String path : input.split(","))
+            s1.inputs(new Path(path));
 
-        long globalN;
-        try {
-            globalN = readTotalN(conf, new Path(out1), "global");
-            System.err.println("Read GLOBAL_N = " + globalN);
-        } catch (Exception e) {
-            System.err.println("ERROR reading global N: " + e.getMessage());
-            return 1;
-        }
-        conf.setLong("GLOBAL_N", globalN);
+        // JOB 1.5
+        StageGraph.Stage s15 = graph.add("DIRT_1.5_Dictionary", out15, j15 -> {
+            j15.setMapperClass(Job15_Dictionary.Map.class);
+            j15.setCombinerClass(Job15_Dictionary.Combine.class);
+            j15.setReducerClass(Job15_Dictionary.Reduce.class);
+            int reducers = conf.getInt(Job15_Dictionary.REDUCERS, conf.getInt(MRJobConfig.NUM_REDUCES, 1));
+            if (reducers > 1) {
+                Path splits = new Path(outputBase + "/step1_5_splits");
+                reducers = Job15_Dictionary.writeSplits(conf, new Path(out1 + "/triples*"), splits, reducers);
+                j15.setPartitionerClass(TotalOrderPartitioner.class);
+                TotalOrderPartitioner.setPartitionFile(j15.getConfiguration(), splits);
+            }
+            j15.setNumReduceTasks(reducers);
+            j15.setMapOutputKeyClass(Text.class);
+            j15.setMapOutputValueClass(SlotCounts.class);
+            j15.setOutputKeyClass(ExtractionKey.class);
+            j15.setOutputValueClass(LongWritable.class);
+            j15.setInputFormatClass(SequenceFileInputFormat.class);
+            j15.setOutputFormatClass(SequenceFileOutputFormat.class);
+            MultipleOutputs.addNamedOutput(j15, "pathmargins", SequenceFileOutputFormat.class, ExtractionKey.class, LongWritable.class);
+            MultipleOutputs.setCountersEnabled(j15, true);
+            FileInputFormat.addInputPath(j15, new Path(out1 + "/triples*"));
+        }, s1);
 
         // JOB 2
-        System.err.println("Starting Job 2: MI Calculation");
-        Job j2 = Job.getInstance(conf, "DIRT_2_MI");
-        j2.setJarByClass(DirtDriver.class);
-        addCacheFilesWithPrefix(j2, conf, new Path(out1), "wordmargins");
-
-        j2.setMapperClass(Job2_MI.Map.class);
-        j2.setGroupingComparatorClass(PathSlotGroupingComparator.class);
-        j2.setReducerClass(Job2_MI.Reduce.class);
-        j2.setMapOutputKeyClass(PathSlotKey.class);
-        j2.setMapOutputValueClass(Text.class);
-
-        FileInputFormat.addInputPath(j2, new Path(out1 + "/triples*"));
-        FileInputFormat.addInputPath(j2, new Path(out1 + "/pathmargins*"));
-
-        FileOutputFormat.setOutputPath(j2, new Path(out2));
-        if (!j2.waitForCompletion(true))
-            return 1;
+        StageGraph.Stage s2 = graph.add("DIRT_2_MI", out2, j2 -> {
+            addCacheFilesWithPrefix(j2, conf, out15, "pathtable");
+            addCacheFilesWithPrefix(j2, conf, out15, "wordtable");
 
-        // JOB 2.5
-        System.err.println("Starting Job 2.5: Sum MI");
-        Job j25 = Job.getInstance(conf, "DIRT_2.5_SumMI");
-        j25.setJarByClass(DirtDriver.class);
-        j25.setMapperClass(Job25_SumMI.Map.class);
-        j25.setCombinerClass(Job25_SumMI.Reduce.class);
-        j25.setReducerClass(Job25_SumMI.Reduce.class);
-        j25.setOutputKeyClass(Text.class);
-        j25.setOutputValueClass(DoubleWritable.class);
-        FileInputFormat.addInputPath(j25, new Path(out2));
-        FileOutputFormat.setOutputPath(j25, new Path(out25));
-        if (!j25.waitForCompletion(true))
-            return 1;
+            j2.setMapperClass(Job2_MI.Map.class);
+            j2.setPartitionerClass(PathSlotPartitioner.class);
+            j2.setSortComparatorClass(PathSlotKey.Comparator.class);
+            j2.setGroupingComparatorClass(PathSlotGroupingComparator.class);
+            j2.setReducerClass(Job2_MI.Reduce.class);
+            j2.setMapOutputKeyClass(PathSlotKey.class);
+            j2.setMapOutputValueClass(TripleCount.class);
+            j2.setOutputKeyClass(NullWritable.class);
+            j2.setOutputValueClass(FeatureMI.class);
+            j2.setInputFormatClass(SequenceFileInputFormat.class);
+            j2.setOutputFormatClass(SequenceFileOutputFormat.class);
+            MultipleOutputs.addNamedOutput(j2, "summi", SequenceFileOutputFormat.class, LongWritable.class, DoubleWritable.class);
+            MultipleOutputs.setCountersEnabled(j2, true);
+
+            FileInputFormat.addInputPath(j2, new Path(out1 + "/triples*"));
+            FileInputFormat.addInputPath(j2, new Path(out15 + "/pathmargins*"));
+        }, s1, s15);
+
+        // VECTOR STORE (optional; runs alongside Job 3)
+        if (conf.getBoolean(VectorStore.BUILD, false)) {
+            graph.add("DIRT_2_VectorStore", new Path(outputBase + "/store"), js -> {
+                addCacheFilesWithPrefix(js, conf, out15, "pathtable");
+                js.setMapperClass(VectorStore.Map.class);
+                js.setReducerClass(VectorStore.Reduce.class);
+                js.setMapOutputKeyClass(Text.class);
+                js.setMapOutputValueClass(FeatureMI.class);
+                js.setOutputKeyClass(Text.class);
+                js.setOutputValueClass(PathVector.class);
+                js.setInputFormatClass(SequenceFileInputFormat.class);
+                js.setOutputFormatClass(MapFileOutputFormat.class);
+                FileInputFormat.addInputPath(js, new Path(out2 + "/part-*"));
+            }, s15, s2);
+        }
 
         // JOB 3
-        System.err.println("Starting Job 3: Overlap Calculation");
-        Job j3 = Job.getInstance(conf, "DIRT_3_Overlap");
-        j3.setJarByClass(DirtDriver.class);
-        j3.addCacheFile(new URI(testSetBase + "/positive-preds.txt"));
-        j3.addCacheFile(new URI(testSetBase + "/negative-preds.txt"));
-        j3.setMapperClass(Job3_Overlap.Map.class);
-        j3.setReducerClass(Job3_Overlap.Reduce.class);
-        j3.setOutputKeyClass(Text.class);
-        j3.setOutputValueClass(Text.class);
-        FileInputFormat.addInputPath(j3, new Path(out2));
-        FileOutputFormat.setOutputPath(j3, new Path(out3));
-        if (!j3.waitForCompletion(true))
-            return 1;
+        if (MODE_ALLPAIRS.equals(mode)) {
+            StageGraph.Stage s3 = graph.add("DIRT_3_AllPairs", out3, j3 -> {
+                j3.setMapperClass(Job3_AllPairs.Map.class);
+                j3.setReducerClass(Job3_AllPairs.Reduce.class);
+                j3.setMapOutputKeyClass(LongWritable.class);
+                j3.setMapOutputValueClass(FeatureMI.class);
+                j3.setOutputKeyClass(NullWritable.class);
+                j3.setOutputValueClass(PairNumerator.class);
+                j3.setInputFormatClass(SequenceFileInputFormat.class);
+                j3.setOutputFormatClass(SequenceFileOutputFormat.class);
+                FileInputFormat.addInputPath(j3, new Path(out2 + "/part-*"));
+            }, s2).settings(Job3_AllPairs.MAX_POSTINGS);
+
+            // JOB 4 (all-pairs mode only; test-set and LSH mode score inside Job 3)
+            int topK = conf.getInt(Job5_TopK.K, 0);
+            Path step4 = new Path(outputBase + "/step4");
+            StageGraph.Stage s4 = graph.add("DIRT_4_FinalSim", topK > 0 ? step4 : out4, j4 -> {
+                addCacheFilesWithPrefix(j4, conf, out2, "summi");
+                j4.setMapperClass(Job4_FinalSim.Map.class);
+                j4.setCombinerClass(Job4_FinalSim.Combine.class);
+                j4.setMapOutputKeyClass(LongWritable.class);
+                j4.setMapOutputValueClass(PairNumerator.class);
+                j4.setInputFormatClass(SequenceFileInputFormat.class);
+                FileInputFormat.addInputPath(j4, out3);
+                if (topK > 0) {
+                    j4.setReducerClass(Job4_FinalSim.NeighbourReduce.class);
+                    j4.setOutputKeyClass(IntWritable.class);
+                    j4.setOutputValueClass(ScoredPath.class);
+                    j4.setOutputFormatClass(SequenceFileOutputFormat.class);
+                } else {
+                    addCacheFilesWithPrefix(j4, conf, out15, "pathtable");
+                    j4.setReducerClass(Job4_FinalSim.Reduce.class);
+                    j4.setOutputKeyClass(Text.class);
+                    j4.setOutputValueClass(DoubleWritable.class);
+                }
+            }, s15, s2, s3).settings(Job4_FinalSim.MIN_SIMILARITY, Job5_TopK.K);
+
+            // JOB 5 (optional)
+            if (topK > 0) {
+                graph.add("DIRT_5_TopK", out4, j5 -> {
+                    addCacheFilesWithPrefix(j5, conf, out15, "pathtable");
+                    j5.setMapperClass(Mapper.class);
+                    j5.setCombinerClass(Job5_TopK.Combine.class);
+                    j5.setReducerClass(Job5_TopK.Reduce.class);
+                    j5.setMapOutputKeyClass(IntWritable.class);
+                    j5.setMapOutputValueClass(ScoredPath.class);
+                    j5.setOutputKeyClass(Text.class);
+                    j5.setOutputValueClass(DoubleWritable.class);
+                    j5.setInputFormatClass(SequenceFileInputFormat.class);
+                    FileInputFormat.addInputPath(j5, step4);
+                }, s15, s4).settings(Job5_TopK.K);
+            }
+        } else {
+            // In LSH mode the test pairs are scored on the side, as the reference for the recall
+            boolean lsh = MODE_LSH.equals(mode);
+            Path positives = new Path(testSetBase + "/positive-preds.txt");
+            Path negatives = new Path(testSetBase + "/negative-preds.txt");
+            graph.add("DIRT_3_Overlap", lsh ? new Path(out3 + "_lsh/testset") : out4, j3 -> {
+                j3.addCacheFile(positives.toUri());
+                j3.addCacheFile(negatives.toUri());
+                addCacheFilesWithPrefix(j3, conf, out15, "pathtable");
+                j3.setMapperClass(Job3_Overlap.Map.class);
+                j3.setPartitionerClass(BlockPartitioner.class);
+                j3.setSortComparatorClass(BlockFeatureKey.Comparator.class);
+                j3.setGroupingComparatorClass(BlockGroupingComparator.class);
+                j3.setReducerClass(Job3_Overlap.Reduce.class);
+                j3.setMapOutputKeyClass(BlockFeatureKey.class);
+                j3.setMapOutputValueClass(DoubleWritable.class);
+                j3.setOutputKeyClass(Text.class);
+                j3.setOutputValueClass(DoubleWritable.class);
+                j3.setInputFormatClass(SequenceFileInputFormat.class);
+                FileInputFormat.addInputPath(j3, new Path(out2 + "/part-*"));
+            }, s15, s2).inputs(positives, negatives).settings(MODE, Job4_FinalSim.MIN_SIMILARITY)
+                    .onDone((job, marker) -> recall[0] = counterInMarker(job, marker, Job3_Overlap.RecallCounter.TEST_PAIRS_SCORED));
+            if (lsh) {
+                addLshStages(graph, conf, out15, out2, new Path(out3 + "_lsh"), out4, positives, negatives, s15, s2)
+                        .onDone((job, marker) -> recall[1] = counterInMarker(job, marker, Job3_Overlap.RecallCounter.TEST_PAIRS_FOUND));
+            }
+        }
 
-        // JOB 4
-        System.err.println("Starting Job 4: Final Similarity");
-        Job j4 = Job.getInstance(conf, "DIRT_4_FinalSim");
-        j4.setJarByClass(DirtDriver.class);
-        addAllPartsToCache(j4, conf, new Path(out25));
-        j4.setMapperClass(Job4_FinalSim.Map.class);
-        j4.setReducerClass(Job4_FinalSim.Reduce.class);
-        j4.setOutputKeyClass(Text.class);
-        j4.setOutputValueClass(DoubleWritable.class);
-        j4.setMapOutputValueClass(Text.class);
-        FileInputFormat.addInputPath(j4, new Path(out3));
-        FileOutputFormat.setOutputPath(j4, new Path(out4));
-
-        boolean success = j4.waitForCompletion(true);
+        boolean success = graph.run(report);
+        if (success && MODE_LSH.equals(mode)) {
+            long scored = recall[0], found = recall[1];
+            System.err.println("LSH recall on test pairs: " + found + " / " + scored
+                    + (scored > 0 ? String.format(" = %.4f", (double) found / scored) : ""));
+        }
         System.err.println("Job completed: " + (success ? "SUCCESS" : "FAILURE"));
         return success ? 0 : 1;
     }
 
     // --- HELPER METHODS ---
 
-    private void addCacheFilesWithPrefix(Job job, Configuration conf, Path parentDir, String prefix)
-            throws IOException {
-        FileSystem fs = parentDir.getFileSystem(conf);
-        int count = 0;
-        if (fs.exists(parentDir)) {
-            FileStatus[] stats = fs.listStatus(parentDir);
-            for (FileStatus stat : stats) {
-                if (stat.getPath().getName().startsWith(prefix)) {
-                    job.addCacheFile(stat.getPath().toUri());
-                    count++;
+    /**
+     * Scores the pairs of a test-set style file ("phrase1 \t phrase2" per
+     * line; a field may also be a path string) against the vector store
+     * and prints "path1 \t path2 \t score". Only the requested paths are
+     * read. A path with no vector scores 0.
+     */
+    private int score(Configuration conf, String pairsFile, String storeDir) throws IOException {
+        Job3_Overlap.TestPairs translator = new Job3_Overlap.TestPairs(StemCache.fromConf(conf));
+        VectorStore store = new VectorStore(new Path(storeDir), conf);
+        Path pairs = new Path(pairsFile);
+        int scored = 0, skipped = 0;
+        try (BufferedReader br = new BufferedReader(new InputStreamReader(
+                pairs.getFileSystem(conf).open(pairs), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                String[] p = line.split("\t");
+                if (p.length < 2)
+                    continue;
+                String path1 = p[0].startsWith("N:") ? p[0] : translator.convertPhraseToPath(p[0]);
+                String path2 = p[1].startsWith("N:") ? p[1] : translator.convertPhraseToPath(p[1]);
+                if (path1 == null || path2 == null) {
+                    skipped++;
+                    continue;
                 }
+                PathVector v1 = store.get(path1);
+                PathVector v2 = store.get(path2);
+                double sim = (v1 == null || v2 == null) ? 0.0 : PathVector.similarity(v1, v2);
+                System.out.println(Job4_FinalSim.pairName(path1, path2) + "\t" + sim);
+                scored++;
             }
+        } finally {
+            store.close();
         }
-        System.err.println("Added " + count + " cache files with prefix: " + prefix);
+        System.err.println("Scored " + scored + " pairs, skipped " + skipped + " untranslatable lines");
+        return 0;
     }
 
-    private void addAllPartsToCache(Job job, Configuration conf, Path dir) throws IOException {
-        FileSystem fs = dir.getFileSystem(conf);
-        int count = 0;
-        if (fs.exists(dir)) {
-            FileStatus[] stats = fs.listStatus(dir);
-            for (FileStatus st : stats) {
-                if (st.getPath().getName().startsWith("part-")) {
-                    job.addCacheFile(st.getPath().toUri());
-                    count++;
-                }
+    /**
+     * Runs the pipeline in this JVM with the local engine and writes the
+     * final lines to outputDir/part-r-00000, as Job 3 (test-set mode) or
+     * Job 4 / Job 5 (all-pairs mode) would.
+     */
+    private int local(Configuration conf, String input, String outputDir, String testSetBase) throws Exception {
+        String mode = conf.get(MODE, MODE_TESTSET);
+        if (!MODE_TESTSET.equals(mode) && !MODE_ALLPAIRS.equals(mode)) {
+            System.err.println("The local engine runs " + MODE + "=" + MODE_TESTSET + " or " + MODE_ALLPAIRS + ", not " + mode);
+            return 1;
+        }
+        Path out = new Path(outputDir);
+        FileSystem fs = out.getFileSystem(conf);
+        if (fs.exists(out)) {
+            System.err.println("Output directory " + out + " already exists");
+            return 1;
+        }
+        long start = System.currentTimeMillis();
+        LocalEngine engine = new LocalEngine(conf);
+        List<String> lines;
+        try {
+            engine.buildVectors(input);
+            if (MODE_ALLPAIRS.equals(mode))
+                lines = engine.scoreAllPairs();
+            else
+                lines = engine.scoreTestSet(Arrays.asList(new Path(testSetBase + "/positive-preds.txt"),
+                        new Path(testSetBase + "/negative-preds.txt")));
+        } finally {
+            engine.close();
+        }
+        try (Writer w = new BufferedWriter(new OutputStreamWriter(fs.create(new Path(out, "part-r-00000")),
+                StandardCharsets.UTF_8))) {
+            for (String line : lines) {
+                w.write(line);
+                w.write('\n');
             }
         }
-        System.err.println("Added " + count + " part files to cache from: " + dir);
+        System.err.println("Local engine wrote " + out + " in " + (System.currentTimeMillis() - start) + " ms");
+        return 0;
+    }
+
+    /**
+     * Prints a run report's stages and, given a baseline report, the
+     * stages that regressed beyond dirt.report.threshold. Returns 1 when
+     * there is a regression, so scripts can gate on it.
+     */
+    private int report(Configuration conf, String reportFile, String baselineFile) throws IOException {
+        JsonNode current = RunReport.read(conf, new Path(reportFile));
+        RunReport.print(current, System.out);
+        if (baselineFile == null)
+            return 0;
+        List<String> regressions = RunReport.regressions(current, RunReport.read(conf, new Path(baselineFile)),
+                conf.getDouble(RunReport.THRESHOLD, RunReport.DEFAULT_THRESHOLD));
+        System.out.println(regressions.size() + " regressions against " + baselineFile);
+        for (String line : regressions)
+            System.out.println("  " + line);
+        return regressions.isEmpty() ? 0 : 1;
+    }
+
+    /** Builds the local query index of a vector store. */
+    private int index(Configuration conf, String storeDir, String indexDir) throws IOException {
+        SimilarityIndex.build(conf, new Path(storeDir), new File(indexDir));
+        return 0;
+    }
+
+    /**
+     * Adds the LSH jobs under base: signatures' buckets, candidate pairs,
+     * distinct pairs, the pairs joined to their vectors, and the scores,
+     * which go to output. Returns the scoring stage.
+     */
+    private StageGraph.Stage addLshStages(StageGraph graph, Configuration conf, Path dictionary, Path vectors,
+                                          Path base, Path output, Path positives, Path negatives,
+                                          StageGraph.Stage dictionaryStage, StageGraph.Stage vectorStage) {
+        Path buckets = new Path(base, "buckets");
+        Path candidates = new Path(base, "candidates");
+        Path distinct = new Path(base, "pairs");
+        Path joined = new Path(base, "joined");
+
+        StageGraph.Stage sig = graph.add("DIRT_3_LSH_Signatures", buckets, job -> {
+            job.setMapperClass(Job3_LSH.SignatureMap.class);
+            job.setReducerClass(Job3_LSH.SignatureReduce.class);
+            job.setMapOutputKeyClass(LongWritable.class);
+            job.setMapOutputValueClass(FeatureMI.class);
+            job.setOutputKeyClass(LongWritable.class);
+            job.setOutputValueClass(IntWritable.class);
+            job.setInputFormatClass(SequenceFileInputFormat.class);
+            job.setOutputFormatClass(SequenceFileOutputFormat.class);
+            FileInputFormat.addInputPath(job, new Path(vectors + "/part-*"));
+        }, vectorStage).settings(Job3_LSH.BANDS, Job3_LSH.ROWS);
+
+        StageGraph.Stage cand = graph.add("DIRT_3_LSH_Candidates", candidates, job -> {
+            job.setMapperClass(Mapper.class);
+            job.setReducerClass(Job3_LSH.BucketReduce.class);
+            job.setMapOutputKeyClass(LongWritable.class);
+            job.setMapOutputValueClass(IntWritable.class);
+            job.setOutputKeyClass(LongWritable.class);
+            job.setOutputValueClass(NullWritable.class);
+            job.setInputFormatClass(SequenceFileInputFormat.class);
+            job.setOutputFormatClass(SequenceFileOutputFormat.class);
+            FileInputFormat.addInputPath(job, buckets);
+        }, sig).settings(Job3_LSH.MAX_BUCKET);
+
+        StageGraph.Stage pairs = graph.add("DIRT_3_LSH_Pairs", distinct, job -> {
+            job.setMapperClass(Mapper.class);
+            job.setCombinerClass(Job3_LSH.DistinctPairs.class);
+            job.setReducerClass(Job3_LSH.DistinctPairsReduce.class);
+            job.setOutputKeyClass(LongWritable.class);
+            job.setOutputValueClass(NullWritable.class);
+            job.setInputFormatClass(SequenceFileInputFormat.class);
+            job.setOutputFormatClass(SequenceFileOutputFormat.class);
+            FileInputFormat.addInputPath(job, candidates);
+        }, cand);
+
+        StageGraph.Stage join = graph.add("DIRT_3_LSH_Join", joined, job -> {
+            MultipleInputs.addInputPath(job, new Path(vectors + "/part-*"), SequenceFileInputFormat.class,
+                    Job3_LSH.VectorMap.class);
+            MultipleInputs.addInputPath(job, distinct, SequenceFileInputFormat.class, Job3_LSH.PairMap.class);
+            job.setPartitionerClass(Job3_LSH.PathPartitioner.class);
+            job.setGroupingComparatorClass(Job3_LSH.PathGroupingComparator.class);
+            job.setReducerClass(Job3_LSH.JoinReduce.class);
+            job.setMapOutputKeyClass(LongWritable.class);
+            job.setMapOutputValueClass(FeatureMI.class);
+            job.setOutputKeyClass(LongWritable.class);
+            job.setOutputValueClass(PathVector.class);
+            job.setOutputFormatClass(SequenceFileOutputFormat.class);
+        }, vectorStage, pairs);
+
+        return graph.add("DIRT_3_LSH_Score", output, job -> {
+            job.addCacheFile(positives.toUri());
+            job.addCacheFile(negatives.toUri());
+            addCacheFilesWithPrefix(job, conf, dictionary, "pathtable");
+            job.setMapperClass(Mapper.class);
+            job.setReducerClass(Job3_LSH.ScoreReduce.class);
+            job.setMapOutputKeyClass(LongWritable.class);
+            job.setMapOutputValueClass(PathVector.class);
+            job.setOutputKeyClass(Text.class);
+            job.setOutputValueClass(DoubleWritable.class);
+            job.setInputFormatClass(SequenceFileInputFormat.class);
+            FileInputFormat.addInputPath(job, joined);
+        }, dictionaryStage, join).inputs(positives, negatives).settings(Job4_FinalSim.MIN_SIMILARITY);
     }
 
-    private long readTotalN(Configuration conf, Path parentDir, String prefix) throws IOException {
-        long sum = 0;
+    /** Stores the counter's value in the marker when the stage ran, and returns the value kept there. */
+    private static long counterInMarker(Job job, Properties marker, Enum<?> counter) throws IOException {
+        if (job != null)
+            marker.setProperty(counter.name(), String.valueOf(job.getCounters().findCounter(counter).getValue()));
+        return Long.parseLong(marker.getProperty(counter.name(), "0"));
+    }
+
+    private void addCacheFilesWithPrefix(Job job, Configuration conf, Path parentDir, String prefix)
+            throws IOException {
         FileSystem fs = parentDir.getFileSystem(conf);
-        int fileCount = 0;
-        
+        int count = 0;
         if (fs.exists(parentDir)) {
             FileStatus[] stats = fs.listStatus(parentDir);
             for (FileStatus stat : stats) {
                 if (stat.getPath().getName().startsWith(prefix)) {
-                    fileCount++;
-                    try (BufferedReader br = new BufferedReader(new InputStreamReader(fs.open(stat.getPath())))) {
-                        String line;
-                        while ((line = br.readLine()) != null) {
-                            String[] partsStr = line.split("\t");
-                            if (partsStr.length >= 2) {
-                                try {
-                                    sum += Long.parseLong(partsStr[1]);
-                                } catch (NumberFormatException e) {
-                                    System.err.println("WARNING: Cannot parse count in line: " + line);
-                                }
-                            }
-                        }
-                    }
+                    job.addCacheFile(stat.getPath().toUri());
+                    count++;
                 }
             }
         }
-        
-        if (fileCount == 0) {
-            throw new IOException("No files found with prefix: " + prefix + " in " + parentDir);
-        }
-        
-        System.err.println("Read total N from " + fileCount + " files: " + sum);
-        return sum == 0 ? 1 : sum;
+        System.err.println("Added " + count + " cache files with prefix: " + prefix);
     }
 }
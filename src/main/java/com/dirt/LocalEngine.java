@@ -0,0 +1,411 @@
+package com.dirt;
+
+import com.dirt.DirtDriver.ExtractionKey;
+import com.dirt.DirtDriver.Ids;
+import com.dirt.DirtDriver.Job1_Extraction;
+import com.dirt.DirtDriver.Job2_MI;
+import com.dirt.DirtDriver.Job3_AllPairs;
+import com.dirt.DirtDriver.Job3_Overlap;
+import com.dirt.DirtDriver.Job4_FinalSim;
+import com.dirt.DirtDriver.Job5_TopK;
+import com.dirt.DirtDriver.PathExtractor;
+import com.dirt.DirtDriver.PathVector;
+import com.dirt.DirtDriver.ScoredPath;
+import com.dirt.DirtDriver.Sentence;
+import com.dirt.DirtDriver.StemCache;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.TaskAttemptID;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.LineRecordReader;
+import org.apache.hadoop.mapreduce.lib.input.TextInputFormat;
+import org.apache.hadoop.mapreduce.task.TaskAttemptContextImpl;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+/**
+ * Runs the whole pipeline in one JVM ("local" command), for tuning
+ * runs and corpora that fit in memory. The input splits are parsed in
+ * parallel on a ForkJoinPool, and each worker thread aggregates its
+ * triple counts in its own hash table, as the in-mapper combiner does.
+ * Nothing goes through text files or a sort. Every stage uses the
+ * same code as its job: Job 1's line parser, PathExtractor,
+ * PathVector, TestPairs and Job4_FinalSim's formula. MI and the
+ * numerators are also added up in the same (slot, word) order, so
+ * test-set scores match the MapReduce run bit for bit. In all-pairs
+ * mode Job 4's combiner adds the partial numerators in shuffle order,
+ * so those scores can differ from the MapReduce run in the last bits.
+ */
+public class LocalEngine {
+    public static final String THREADS = "dirt.local.threads";
+
+    private final Configuration conf;
+    private final ForkJoinPool pool;
+
+    /** Path names in id order, and each path's vector (null when it kept no feature). */
+    private Text[] pathNames;
+    private PathVector[] vectors;
+
+    public LocalEngine(Configuration conf) {
+        this.conf = conf;
+        pool = new ForkJoinPool(conf.getInt(THREADS, Runtime.getRuntime().availableProcessors()));
+    }
+
+    /** One thread's parser, extractor and partial triple counts. */
+    private static final class Worker {
+        final Job1_Extraction.Map parser = new Job1_Extraction.Map();
+        final PathExtractor extractor;
+        final Map<ExtractionKey, long[]> counts = new HashMap<>();
+        final ExtractionKey key = new ExtractionKey();
+        long globalN = 0;
+
+        Worker(StemCache stems) {
+            extractor = new PathExtractor(stems);
+        }
+
+        void line(Text value) {
+            Sentence tokens = parser.parseLine(value.getBytes(), value.getLength());
+            if (tokens == null)
+                return;
+            long count = tokens.count();
+            int extracted = extractor.extractPaths(tokens);
+            for (int i = 0; i < extracted; i++) {
+                add(extractor.path(i), Ids.SLOT_X, extractor.x(i), count);
+                add(extractor.path(i), Ids.SLOT_Y, extractor.y(i), count);
+                globalN += count * 2;
+            }
+        }
+
+        private void add(String path, int slot, String word, long count) {
+            key.set(ExtractionKey.TRIPLE, path, slot, word);
+            long[] c = counts.get(key);
+            if (c != null) {
+                c[0] += count;
+                return;
+            }
+            ExtractionKey k = new ExtractionKey();
+            k.set(key);
+            counts.put(k, new long[] { count });
+        }
+    }
+
+    /** Job 1: extracts the triples of every input split and returns their counts and N. */
+    private Map<ExtractionKey, long[]> extract(String input, long[] globalN) throws Exception {
+        Job job = Job.getInstance(conf);
+        FileInputFormat.addInputPaths(job, input);
+        List<InputSplit> splits = new TextInputFormat().getSplits(job);
+        ConcurrentLinkedQueue<Worker> workers = new ConcurrentLinkedQueue<>();
+        ThreadLocal<Worker> local = ThreadLocal.withInitial(() -> {
+            Worker w = new Worker(StemCache.fromConf(conf));
+            workers.add(w);
+            return w;
+        });
+        pool.submit(() -> splits.parallelStream().forEach(split -> {
+            Worker w = local.get();
+            try (LineRecordReader reader = new LineRecordReader()) {
+                reader.initialize(split, new TaskAttemptContextImpl(job.getConfiguration(), new TaskAttemptID()));
+                while (reader.nextKeyValue())
+                    w.line(reader.getCurrentValue());
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        })).get();
+
+        Map<ExtractionKey, long[]> counts = null;
+        globalN[0] = 0;
+        for (Worker w : workers) {
+            globalN[0] += w.globalN;
+            if (counts == null || w.counts.size() > counts.size()) {
+                Map<ExtractionKey, long[]> t = counts;
+                counts = w.counts;
+                if (t == null)
+                    continue;
+                merge(counts, t);
+            } else {
+                merge(counts, w.counts);
+            }
+        }
+        System.err.println("Extracted " + splits.size() + " splits on " + workers.size() + " threads");
+        return counts == null ? new HashMap<>() : counts;
+    }
+
+    private static void merge(Map<ExtractionKey, long[]> into, Map<ExtractionKey, long[]> from) {
+        for (Map.Entry<ExtractionKey, long[]> e : from.entrySet()) {
+            long[] c = into.putIfAbsent(e.getKey(), e.getValue());
+            if (c != null)
+                c[0] += e.getValue()[0];
+        }
+        from.clear();
+    }
+
+    /** Job 1.5: names sorted in Text byte order, so ids match the dictionary job's. */
+    private static Text[] sortedNames(Collection<ExtractionKey> keys, boolean paths) {
+        Set<Text> names = new HashSet<>();
+        for (ExtractionKey k : keys)
+            names.add(paths ? k.path : k.word);
+        Text[] sorted = names.toArray(new Text[0]);
+        Arrays.parallelSort(sorted);
+        return sorted;
+    }
+
+    private static Map<Text, Integer> idsOf(Text[] names) {
+        Map<Text, Integer> ids = new HashMap<>(names.length * 2);
+        for (int i = 0; i < names.length; i++)
+            ids.put(names[i], i);
+        return ids;
+    }
+
+    /**
+     * Jobs 1 to 2: builds every path's MI vector. A path's vector is
+     * sorted by (slot, word), and PathVector.sort sums each slot's MI
+     * in that order, which is the order Job 2 sums SumMI in.
+     */
+    public void buildVectors(String input) throws Exception {
+        long start = System.currentTimeMillis();
+        long[] n = new long[1];
+        Map<ExtractionKey, long[]> counts = extract(input, n);
+        long globalN = n[0] == 0 ? 1 : n[0];
+        System.err.println(counts.size() + " distinct triples, GLOBAL_N = " + globalN
+                + " (" + (System.currentTimeMillis() - start) + " ms)");
+
+        pathNames = sortedNames(counts.keySet(), true);
+        Text[] wordNames = sortedNames(counts.keySet(), false);
+        Map<Text, Integer> pathIds = idsOf(pathNames);
+        Map<Text, Integer> wordIds = idsOf(wordNames);
+
+        // Margins, and the triples of each path laid out contiguously
+        long[][] pathMargins = new long[2][pathNames.length];
+        long[][] wordMargins = new long[2][wordNames.length];
+        int[] offsets = new int[pathNames.length + 1];
+        for (Map.Entry<ExtractionKey, long[]> e : counts.entrySet()) {
+            ExtractionKey k = e.getKey();
+            pathMargins[k.slot][pathIds.get(k.path)] += e.getValue()[0];
+            wordMargins[k.slot][wordIds.get(k.word)] += e.getValue()[0];
+            offsets[pathIds.get(k.path) + 1]++;
+        }
+        for (int p = 0; p < pathNames.length; p++)
+            offsets[p + 1] += offsets[p];
+        int[] fill = Arrays.copyOf(offsets, pathNames.length);
+        long[] features = new long[counts.size()];
+        long[] tripleCounts = new long[counts.size()];
+        for (Map.Entry<ExtractionKey, long[]> e : counts.entrySet()) {
+            ExtractionKey k = e.getKey();
+            int i = fill[pathIds.get(k.path)]++;
+            features[i] = Ids.pack(k.slot, wordIds.get(k.word));
+            tripleCounts[i] = e.getValue()[0];
+        }
+        counts.clear();
+        System.err.println("Assigned " + pathNames.length + " path ids and " + wordNames.length + " word ids");
+
+        // Job 2: MI per triple, under the same margin checks and threshold
+        vectors = new PathVector[pathNames.length];
+        pool.submit(() -> IntStream.range(0, pathNames.length).parallel().forEach(p -> {
+            PathVector v = new PathVector();
+            for (int i = offsets[p]; i < offsets[p + 1]; i++) {
+                int slot = Ids.high(features[i]);
+                int word = Ids.low(features[i]);
+                long psCount = pathMargins[slot][p];
+                long sw = wordMargins[slot][word];
+                if (psCount == 0 || sw == 0)
+                    continue;
+                double mi = Job2_MI.mi(tripleCounts[i], globalN, psCount, sw);
+                if (mi > Job2_MI.MIN_MI)
+                    v.add(slot, word, mi);
+            }
+            if (v.size > 0) {
+                v.sort();
+                vectors[p] = v;
+            }
+        })).get();
+        System.err.println("Built path vectors (" + (System.currentTimeMillis() - start) + " ms)");
+    }
+
+    /**
+     * Job 3 in test-set mode: scores the test pairs with a non-empty
+     * vector on either side, as Job3_Overlap does, and returns
+     * "path1 \t path2 \t score" lines in pair id order.
+     */
+    public List<String> scoreTestSet(List<Path> testSetFiles) throws Exception {
+        Job3_Overlap.TestPairs test = new Job3_Overlap.TestPairs(StemCache.fromConf(conf));
+        for (Path file : testSetFiles) {
+            try (BufferedReader br = new BufferedReader(new InputStreamReader(
+                    file.getFileSystem(conf).open(file), Charset.defaultCharset()))) {
+                test.loadTestSet(br, file.getName());
+            }
+        }
+        Map<String, Integer> ids = new HashMap<>();
+        Map<Text, Integer> pathIds = idsOf(pathNames);
+        for (String path : test.paths()) {
+            Integer id = pathIds.get(new Text(path));
+            if (id != null)
+                ids.put(path, id);
+        }
+        test.resolve(ids);
+        TreeSet<Long> pairs = new TreeSet<>();
+        for (Map.Entry<Integer, List<Integer>> e : test.ids().entrySet())
+            for (int other : e.getValue())
+                pairs.add(Ids.pack(Math.min(e.getKey(), other), Math.max(e.getKey(), other)));
+
+        double minSimilarity = conf.getDouble(Job4_FinalSim.MIN_SIMILARITY, 0.0);
+        long[] sorted = new long[pairs.size()];
+        int i = 0;
+        for (long pair : pairs)
+            sorted[i++] = pair;
+        String[] lines = new String[sorted.length];
+        pool.submit(() -> IntStream.range(0, sorted.length).parallel().forEach(k -> {
+            int p1 = Ids.high(sorted[k]);
+            int p2 = Ids.low(sorted[k]);
+            PathVector v1 = vectors[p1], v2 = vectors[p2];
+            if (v1 == null && v2 == null)
+                return;
+            double sim;
+            if (v1 == null || v2 == null || p1 == p2) // Job 3 never matches a path with itself
+                sim = Job4_FinalSim.similarity(0, 0, sumX(v1), sumY(v1), sumX(v2), sumY(v2));
+            else
+                sim = PathVector.similarity(v1, v2);
+            if (sim >= minSimilarity)
+                lines[k] = Job4_FinalSim.pairName(pathNames[p1].toString(), pathNames[p2].toString()) + "\t" + sim;
+        })).get();
+        List<String> out = new ArrayList<>();
+        for (String line : lines)
+            if (line != null)
+                out.add(line);
+        return out;
+    }
+
+    /** Dense per-thread numerators of one path against all others; reset after each path. */
+    private static final class Numerators {
+        final double[] numX;
+        final double[] numY;
+        final boolean[] seen;
+
+        Numerators(int paths) {
+            numX = new double[paths];
+            numY = new double[paths];
+            seen = new boolean[paths];
+        }
+    }
+
+    private static double sumX(PathVector v) {
+        return v == null ? 0.0 : v.sumX;
+    }
+
+    private static double sumY(PathVector v) {
+        return v == null ? 0.0 : v.sumY;
+    }
+
+    /**
+     * Jobs 3 and 4 in all-pairs mode: every pair of paths sharing a
+     * feature that has at most dirt.allpairs.max.postings postings.
+     * Returns "path1 \t path2 \t score" lines, or with dirt.topk=K the
+     * "path \t neighbour \t score" lines of Job 5, in path id order.
+     */
+    public List<String> scoreAllPairs() throws Exception {
+        int maxPostings = conf.getInt(Job3_AllPairs.MAX_POSTINGS, Job3_AllPairs.DEFAULT_MAX_POSTINGS);
+        double minSimilarity = conf.getDouble(Job4_FinalSim.MIN_SIMILARITY, DirtDriver.ALLPAIRS_MIN_SIMILARITY);
+        int topK = conf.getInt(Job5_TopK.K, 0);
+        int paths = pathNames.length;
+
+        // Inverted index: postings of each feature in path id order
+        Map<Long, Integer> featureIds = new HashMap<>();
+        List<Integer> sizes = new ArrayList<>();
+        for (PathVector v : vectors)
+            if (v != null)
+                for (int i = 0; i < v.size; i++) {
+                    Integer f = featureIds.putIfAbsent(v.features[i], sizes.size());
+                    if (f == null)
+                        sizes.add(1);
+                    else
+                        sizes.set(f, sizes.get(f) + 1);
+                }
+        int[][] postPaths = new int[sizes.size()][];
+        double[][] postMIs = new double[sizes.size()][];
+        int[] fill = new int[sizes.size()];
+        for (int f = 0; f < postPaths.length; f++) {
+            postPaths[f] = new int[sizes.get(f)];
+            postMIs[f] = new double[sizes.get(f)];
+        }
+        int[][] vectorFeatures = new int[paths][];
+        for (int p = 0; p < paths; p++) {
+            PathVector v = vectors[p];
+            if (v == null)
+                continue;
+            vectorFeatures[p] = new int[v.size];
+            for (int i = 0; i < v.size; i++) {
+                int f = featureIds.get(v.features[i]);
+                vectorFeatures[p][i] = f;
+                postPaths[f][fill[f]] = p;
+                postMIs[f][fill[f]++] = v.mis[i];
+            }
+        }
+
+        String[] lines = new String[paths];
+        ThreadLocal<Numerators> scratch = ThreadLocal.withInitial(() -> new Numerators(paths));
+        pool.submit(() -> IntStream.range(0, paths).parallel().forEach(p -> {
+            PathVector v = vectors[p];
+            if (v == null)
+                return;
+            Numerators s = scratch.get();
+            double[] numX = s.numX, numY = s.numY;
+            boolean[] seen = s.seen;
+            List<Integer> touched = new ArrayList<>();
+            for (int i = 0; i < v.size; i++) {
+                int f = vectorFeatures[p][i];
+                if (postPaths[f].length > maxPostings)
+                    continue;
+                double[] num = Ids.high(v.features[i]) == Ids.SLOT_X ? numX : numY;
+                for (int j = 0; j < postPaths[f].length; j++) {
+                    int q = postPaths[f][j];
+                    if (q == p || (topK == 0 && q < p))
+                        continue;
+                    if (!seen[q]) {
+                        seen[q] = true;
+                        touched.add(q);
+                    }
+                    num[q] += v.mis[i] + postMIs[f][j];
+                }
+            }
+            Collections.sort(touched);
+            StringBuilder sb = new StringBuilder();
+            Job5_TopK.BoundedHeap heap = topK > 0 ? new Job5_TopK.BoundedHeap(topK) : null;
+            String name = pathNames[p].toString();
+            for (int q : touched) {
+                double sim = Job4_FinalSim.similarity(numX[q], numY[q], v.sumX, v.sumY, vectors[q].sumX, vectors[q].sumY);
+                numX[q] = 0;
+                numY[q] = 0;
+                seen[q] = false;
+                if (sim < minSimilarity)
+                    continue;
+                if (heap != null)
+                    heap.offer(q, sim);
+                else
+                    sb.append(Job4_FinalSim.pairName(name, pathNames[q].toString())).append('\t').append(sim).append('\n');
+            }
+            if (heap != null) {
+                ScoredPath[] best = Job5_TopK.buffer(topK);
+                int n = heap.drain(best);
+                for (int i = 0; i < n; i++)
+                    sb.append(name).append('\t').append(pathNames[best[i].path]).append('\t').append(best[i].score).append('\n');
+            }
+            if (sb.length() > 0)
+                lines[p] = sb.substring(0, sb.length() - 1);
+        })).get();
+        List<String> out = new ArrayList<>();
+        for (String line : lines)
+            if (line != null)
+                out.add(line);
+        return out;
+    }
+
+    public void close() {
+        pool.shutdown();
+    }
+}
@@ -0,0 +1,167 @@
+package com.dirt;
+
+import com.dirt.DirtDriver.Job3_AllPairs;
+import com.dirt.DirtDriver.Job3_Overlap.TestPairs;
+import com.dirt.DirtDriver.Job4_FinalSim;
+import com.dirt.DirtDriver.SimilarityIndex;
+import com.dirt.DirtDriver.StemCache;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.hadoop.conf.Configuration;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Answers similarity queries against a local index built by the "index"
+ * command: the "query" command reads them from stdin, the "serve"
+ * command over HTTP. Both translate phrases to paths the way Job 3 does
+ * and print the same lines.
+ */
+public class QueryServer {
+    public static final String K = "dirt.query.k";
+
+    private final String indexDir;
+    private final TestPairs translator;
+    private final SimilarityIndex index;
+    private final int k;
+
+    public QueryServer(Configuration conf, String indexDir) throws IOException {
+        this.indexDir = indexDir;
+        translator = new TestPairs(StemCache.fromConf(conf));
+        index = new SimilarityIndex(new File(indexDir),
+                conf.getInt(SimilarityIndex.MAX_POSTINGS, Job3_AllPairs.DEFAULT_MAX_POSTINGS));
+        k = conf.getInt(K, 10);
+    }
+
+    private String toPath(String field) {
+        return field.startsWith("N:") ? field : translator.convertPhraseToPath(field);
+    }
+
+    /** "path1 \t path2 \t score"; a path with no vector scores 0. */
+    private String score(String a, String b) {
+        String path1 = toPath(a), path2 = toPath(b);
+        if (path1 == null || path2 == null)
+            return "";
+        int id1 = index.id(path1), id2 = index.id(path2);
+        double sim = (id1 < 0 || id2 < 0) ? 0.0 : index.score(id1, id2);
+        return Job4_FinalSim.pairName(path1, path2) + "\t" + sim + "\n";
+    }
+
+    /** One "path \t neighbour \t score" line per hit, best first. */
+    private String topK(String q, int k) {
+        String path = toPath(q);
+        int id = path == null ? -1 : index.id(path);
+        if (id < 0)
+            return "";
+        StringBuilder sb = new StringBuilder();
+        for (SimilarityIndex.Hit hit : index.topK(id, k))
+            sb.append(path).append('\t').append(index.name(hit.path)).append('\t').append(hit.score).append('\n');
+        return sb.toString();
+    }
+
+    /**
+     * Answers queries read from stdin against a local index, one per line:
+     * "phrase1 \t phrase2" prints the pair's score as the "score" command
+     * does, a single phrase prints its dirt.query.k most similar paths as
+     * "path \t neighbour \t score" lines. Fields may also be path strings.
+     * Latency percentiles go to stderr at the end.
+     */
+    public int query() throws IOException {
+        List<Long> nanos = new ArrayList<>();
+        try (BufferedReader br = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                String[] p = line.split("\t");
+                if (p[0].isEmpty())
+                    continue;
+                long start = System.nanoTime();
+                String answer = p.length >= 2 ? score(p[0], p[1]) : topK(p[0], k);
+                nanos.add(System.nanoTime() - start);
+                System.out.print(answer);
+            }
+        }
+        if (!nanos.isEmpty()) {
+            Collections.sort(nanos);
+            System.err.printf("Answered %d queries: p50 %.3f ms, p99 %.3f ms, max %.3f ms%n", nanos.size(),
+                    nanos.get(nanos.size() / 2) / 1e6, nanos.get((int) (nanos.size() * 0.99)) / 1e6,
+                    nanos.get(nanos.size() - 1) / 1e6);
+        }
+        return 0;
+    }
+
+    /**
+     * Serves a local index over HTTP on the loopback interface:
+     * GET /score?a=...&b=... and GET /topk?q=...&k=... answer with the
+     * same lines as the "query" command, a malformed request with 400.
+     * Requests are handled one at a time on the server thread, which the
+     * index's scratch arrays need.
+     */
+    public int serve(int port) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/", exchange -> {
+            int status = 200;
+            String answer;
+            try {
+                Map<String, String> params = new HashMap<>();
+                String q = exchange.getRequestURI().getRawQuery();
+                if (q != null)
+                    for (String kv : q.split("&")) {
+                        int eq = kv.indexOf('=');
+                        if (eq > 0)
+                            params.put(kv.substring(0, eq), URLDecoder.decode(kv.substring(eq + 1), "UTF-8"));
+                    }
+                String path = exchange.getRequestURI().getPath();
+                if (path.equals("/score") && params.containsKey("a") && params.containsKey("b")) {
+                    answer = score(params.get("a"), params.get("b"));
+                } else if (path.equals("/topk") && params.containsKey("q")) {
+                    int k = this.k;
+                    try {
+                        if (params.containsKey("k"))
+                            k = Integer.parseInt(params.get("k"));
+                    } catch (NumberFormatException e) {
+                        k = -1;
+                    }
+                    if (k > 0) {
+                        answer = topK(params.get("q"), k);
+                    } else {
+                        status = 400;
+                        answer = "Bad k\n";
+                    }
+                } else {
+                    status = 404;
+                    answer = "Usage: /score?a=<phrase>&b=<phrase> or /topk?q=<phrase>&k=<n>\n";
+                }
+            } catch (IllegalArgumentException e) { // a malformed %-escape
+                status = 400;
+                answer = "Bad request: " + e.getMessage() + "\n";
+            } catch (Exception e) {
+                System.err.println("Query " + exchange.getRequestURI() + " failed: " + e);
+                status = 500;
+                answer = "Query failed\n";
+            }
+            try {
+                byte[] body = answer.getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+                exchange.sendResponseHeaders(status, body.length);
+                try (OutputStream os = exchange.getResponseBody()) {
+                    os.write(body);
+                }
+            } finally {
+                exchange.close();
+            }
+        });
+        server.start();
+        System.err.println("Serving " + indexDir + " on http://" + server.getAddress().getHostString() + ":"
+                + server.getAddress().getPort() + "/");
+        try {
+            Thread.currentThread().join(); // until the process is killed
+        } catch (InterruptedException e) {
+            server.stop(0);
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,165 @@
+package com.dirt;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapreduce.*;
+import org.apache.hadoop.mapreduce.lib.output.MultipleOutputs;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Records every job of a pipeline run and writes the result as JSON
+ * to outputBase/run-report.json, next to the final output. Each stage
+ * holds the job's wall time, the summed map and reduce task times,
+ * the shuffle volume, spilled records, the record count of each named
+ * output, and the com.dirt counters. With -D dirt.report.baseline
+ * pointing at an earlier report, stages that got slower or heavier by
+ * more than dirt.report.threshold are printed at the end of the run.
+ */
+public class RunReport {
+    public static final String FILE = "run-report.json";
+    public static final String BASELINE = "dirt.report.baseline";
+    public static final String THRESHOLD = "dirt.report.threshold";
+    public static final double DEFAULT_THRESHOLD = 0.25;
+
+    /** Stage metrics compared against a baseline, each with the change below which it is noise. */
+    private static final String[] METRICS = { "wallMillis", "mapMillis", "reduceMillis", "shuffleBytes", "spilledRecords" };
+    private static final long[] NOISE = { 5000, 5000, 5000, 1 << 20, 10000 };
+
+    private static final ObjectMapper JSON = new ObjectMapper();
+
+    private final ObjectNode root = JSON.createObjectNode();
+    private final ArrayNode stages = root.putArray("stages");
+    private final long start = System.currentTimeMillis();
+
+    public RunReport(String input, String mode) {
+        root.put("input", input);
+        root.put("mode", mode);
+        root.put("started", start);
+    }
+
+    /** Runs the job to completion and records it as a stage, whether or not it succeeds. */
+    public boolean run(Job job) throws IOException, InterruptedException, ClassNotFoundException {
+        long t = System.currentTimeMillis();
+        boolean success = job.waitForCompletion(true);
+        add(job, System.currentTimeMillis() - t, success);
+        return success;
+    }
+
+    /** Records a stage the scheduler skipped because its output was already complete. */
+    public synchronized void skip(String name) {
+        ObjectNode stage = stages.addObject();
+        stage.put("name", name);
+        stage.put("success", true);
+        stage.put("skipped", true);
+    }
+
+    private synchronized void add(Job job, long wallMillis, boolean success) throws IOException {
+        ObjectNode stage = stages.addObject();
+        stage.put("name", job.getJobName());
+        stage.put("success", success);
+        stage.put("wallMillis", wallMillis);
+        Counters c = job.getCounters();
+        if (c == null)
+            return;
+        stage.put("mapMillis", c.findCounter(JobCounter.MILLIS_MAPS).getValue());
+        stage.put("reduceMillis", c.findCounter(JobCounter.MILLIS_REDUCES).getValue());
+        stage.put("maps", c.findCounter(JobCounter.TOTAL_LAUNCHED_MAPS).getValue());
+        stage.put("reduces", c.findCounter(JobCounter.TOTAL_LAUNCHED_REDUCES).getValue());
+        stage.put("cpuMillis", c.findCounter(TaskCounter.CPU_MILLISECONDS).getValue());
+        stage.put("gcMillis", c.findCounter(TaskCounter.GC_TIME_MILLIS).getValue());
+        stage.put("shuffleBytes", c.findCounter(TaskCounter.REDUCE_SHUFFLE_BYTES).getValue());
+        stage.put("spilledRecords", c.findCounter(TaskCounter.SPILLED_RECORDS).getValue());
+        stage.put("mapInputRecords", c.findCounter(TaskCounter.MAP_INPUT_RECORDS).getValue());
+        stage.put("mapOutputRecords", c.findCounter(TaskCounter.MAP_OUTPUT_RECORDS).getValue());
+        stage.put("reduceInputRecords", c.findCounter(TaskCounter.REDUCE_INPUT_RECORDS).getValue());
+
+        ObjectNode outputs = stage.putObject("outputs");
+        outputs.put("part", job.getNumReduceTasks() > 0
+                ? c.findCounter(TaskCounter.REDUCE_OUTPUT_RECORDS).getValue()
+                : c.findCounter(TaskCounter.MAP_OUTPUT_RECORDS).getValue());
+        for (Counter named : c.getGroup(MultipleOutputs.class.getName()))
+            outputs.put(named.getName(), named.getValue());
+
+        ObjectNode counters = stage.putObject("counters");
+        for (CounterGroup group : c) {
+            if (!group.getName().startsWith("com.dirt."))
+                continue;
+            String prefix = group.getName().substring(group.getName().lastIndexOf('$') + 1) + ".";
+            for (Counter counter : group)
+                counters.put(prefix + counter.getName(), counter.getValue());
+        }
+    }
+
+    /** Writes the report to dir/run-report.json, replacing an earlier one. */
+    public void write(Configuration conf, Path dir, boolean success) throws IOException {
+        root.put("success", success);
+        root.put("wallMillis", System.currentTimeMillis() - start);
+        Path file = new Path(dir, FILE);
+        try (OutputStream out = file.getFileSystem(conf).create(file, true)) {
+            JSON.writerWithDefaultPrettyPrinter().writeValue(out, root);
+        }
+        System.err.println("Wrote run report to " + file);
+    }
+
+    public JsonNode json() {
+        return root;
+    }
+
+    public static JsonNode read(Configuration conf, Path file) throws IOException {
+        try (InputStream in = file.getFileSystem(conf).open(file)) {
+            return JSON.readTree(in);
+        }
+    }
+
+    /**
+     * Compares every stage with the baseline stage of the same name
+     * and returns one line per metric that grew by more than the
+     * threshold (0.25 = 25%) and by more than its noise floor.
+     * Stages missing from either report are listed as well; stages
+     * the scheduler skipped in either run are not compared.
+     */
+    public static List<String> regressions(JsonNode current, JsonNode baseline, double threshold) {
+        Map<String, JsonNode> before = new LinkedHashMap<>();
+        for (JsonNode stage : baseline.path("stages"))
+            before.put(stage.path("name").asText(), stage);
+        List<String> lines = new ArrayList<>();
+        for (JsonNode stage : current.path("stages")) {
+            String name = stage.path("name").asText();
+            JsonNode old = before.remove(name);
+            if (old == null) {
+                lines.add(name + ": not in the baseline");
+                continue;
+            }
+            if (stage.path("skipped").asBoolean() || old.path("skipped").asBoolean())
+                continue;
+            for (int i = 0; i < METRICS.length; i++) {
+                long now = stage.path(METRICS[i]).asLong();
+                long then = old.path(METRICS[i]).asLong();
+                if (now - then > NOISE[i] && now > then * (1 + threshold))
+                    lines.add(String.format("%s: %s %d -> %d (%+.0f%%)", name, METRICS[i], then, now,
+                            then > 0 ? 100.0 * (now - then) / then : 100.0));
+            }
+        }
+        for (String name : before.keySet())
+            lines.add(name + ": not in this run");
+        return lines;
+    }
+
+    /** Prints one line per stage with its wall time, task times and shuffle volume. */
+    public static void print(JsonNode report, PrintStream out) {
+        out.printf("%-24s %10s %10s %10s %14s %14s%n", "stage", "wall ms", "map ms", "reduce ms",
+                "shuffle bytes", "spilled");
+        for (JsonNode stage : report.path("stages"))
+            out.printf("%-24s %10d %10d %10d %14d %14d%s%n", stage.path("name").asText(),
+                    stage.path("wallMillis").asLong(), stage.path("mapMillis").asLong(),
+                    stage.path("reduceMillis").asLong(), stage.path("shuffleBytes").asLong(),
+                    stage.path("spilledRecords").asLong(), stage.path("skipped").asBoolean() ? "  skipped"
+                            : stage.path("success").asBoolean() ? "" : "  FAILED");
+    }
+}
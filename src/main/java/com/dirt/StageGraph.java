@@ -0,0 +1,277 @@
+package com.dirt;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.*;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.MRConfig;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * The pipeline's jobs as a graph of stages, each writing one output
+ * directory. A stage is submitted as soon as the stages it reads have
+ * finished, so independent jobs (the vector store next to Job 3, for
+ * example) run at the same time. Under the local job runner stages run
+ * one at a time: it links every job's cache files into the same working
+ * directory and removes the links when the job ends, so two jobs caching
+ * the same pathtable parts would pull them from under each other.
+ *
+ * When a stage succeeds, a _STAGE_DONE marker is written into its
+ * output. The marker holds a fingerprint of the stage's external
+ * inputs, the settings that change its output and the fingerprints of
+ * the stages it reads. A later run skips every stage whose marker
+ * matches, so a rerun after a late failure starts at the failed stage,
+ * and switching dirt.mode reuses steps 1 and 2. A stage without a valid
+ * marker is run again, unless no stage that runs needs it. The code is
+ * not fingerprinted: after changing a job, run with -D dirt.resume=false,
+ * which reruns every stage.
+ *
+ * Before a stage runs again, its old output is deleted only if it holds
+ * a marker, i.e. a run of the graph completed it. A failed stage deletes
+ * its own partial output. Any other directory in the way fails the
+ * stage, unless dirt.overwrite=true.
+ */
+public class StageGraph {
+    public static final String RESUME = "dirt.resume";
+    public static final String OVERWRITE = "dirt.overwrite";
+    public static final String MARKER = "_STAGE_DONE";
+    private static final String FINGERPRINT = "fingerprint";
+
+    /** Sets up a stage's job. Called once the stages it reads have finished; the output path is already set. */
+    public interface JobSetup {
+        void configure(Job job) throws Exception;
+    }
+
+    /**
+     * Called after a stage succeeds, with its job, or is skipped, with
+     * job == null. A run stores in the marker what later stages need;
+     * a skip reads it back from there.
+     */
+    public interface Completion {
+        void done(Job job, Properties marker) throws IOException;
+    }
+
+    public static class Stage {
+        final String name;
+        final Path output;
+        final JobSetup setup;
+        final List<Stage> deps;
+        final List<Path> inputs = new ArrayList<>();
+        final List<String> settings = new ArrayList<>();
+        Completion completion;
+        String fingerprint;
+
+        Stage(String name, Path output, JobSetup setup, List<Stage> deps) {
+            this.name = name;
+            this.output = output;
+            this.setup = setup;
+            this.deps = deps;
+        }
+
+        /** Files read from outside the graph; their names, sizes and times go into the fingerprint. */
+        public Stage inputs(Path... paths) {
+            inputs.addAll(Arrays.asList(paths));
+            return this;
+        }
+
+        /** Configuration keys whose values change this stage's output. */
+        public Stage settings(String... keys) {
+            settings.addAll(Arrays.asList(keys));
+            return this;
+        }
+
+        public Stage onDone(Completion completion) {
+            this.completion = completion;
+            return this;
+        }
+    }
+
+    private final Configuration conf;
+    private final List<Stage> stages = new ArrayList<>();
+
+    public StageGraph(Configuration conf) {
+        this.conf = conf;
+    }
+
+    /** Adds a stage that reads the given stages' outputs. Stages must be added after the stages they read. */
+    public Stage add(String name, Path output, JobSetup setup, Stage... deps) {
+        Stage stage = new Stage(name, output, setup, Arrays.asList(deps));
+        stages.add(stage);
+        return stage;
+    }
+
+    /** Runs the stages that need to run and returns whether all of them succeeded. */
+    public boolean run(RunReport report) throws Exception {
+        boolean resume = conf.getBoolean(RESUME, true);
+        Map<Stage, Properties> valid = new HashMap<>();
+        for (Stage stage : stages) {
+            stage.fingerprint = fingerprint(stage);
+            Properties marker = resume ? readMarker(stage) : null;
+            if (marker != null && stage.fingerprint.equals(marker.getProperty(FINGERPRINT)))
+                valid.put(stage, marker);
+        }
+
+        // From the last stage back: a stage runs if it is not valid and it is
+        // an end product or a stage that runs reads it
+        Set<Stage> toRun = new HashSet<>();
+        Set<Stage> read = new HashSet<>();
+        Set<Stage> readByRun = new HashSet<>();
+        for (Stage stage : stages)
+            read.addAll(stage.deps);
+        for (int i = stages.size() - 1; i >= 0; i--) {
+            Stage stage = stages.get(i);
+            if (valid.containsKey(stage) || (read.contains(stage) && !readByRun.contains(stage)))
+                continue;
+            toRun.add(stage);
+            readByRun.addAll(stage.deps);
+        }
+        for (Stage stage : stages) {
+            if (toRun.contains(stage))
+                continue;
+            if (valid.containsKey(stage)) {
+                System.err.println("Skipping " + stage.name + ": " + stage.output + " is complete for the same inputs and configuration");
+                if (stage.completion != null)
+                    stage.completion.done(null, valid.get(stage));
+                report.skip(stage.name);
+            } else {
+                System.err.println("Skipping " + stage.name + ": no stage that runs reads it");
+            }
+        }
+
+        ExecutorService pool = Executors.newCachedThreadPool();
+        CompletionService<Boolean> completions = new ExecutorCompletionService<>(pool);
+        Map<Future<Boolean>, Stage> running = new HashMap<>();
+        Set<Stage> started = new HashSet<>();
+        Set<Stage> finished = new HashSet<>();
+        boolean failed = false;
+        boolean serial = MRConfig.LOCAL_FRAMEWORK_NAME.equals(conf.get(MRConfig.FRAMEWORK_NAME, MRConfig.LOCAL_FRAMEWORK_NAME));
+        try {
+            while (true) {
+                for (Stage stage : stages) {
+                    if (failed || !toRun.contains(stage) || started.contains(stage))
+                        continue;
+                    if (serial && !running.isEmpty())
+                        break;
+                    boolean ready = true;
+                    for (Stage dep : stage.deps)
+                        if (toRun.contains(dep) && !finished.contains(dep))
+                            ready = false;
+                    if (ready) {
+                        started.add(stage);
+                        running.put(completions.submit(() -> execute(stage, report)), stage);
+                    }
+                }
+                if (running.isEmpty())
+                    break;
+                Future<Boolean> done = completions.take();
+                Stage stage = running.remove(done);
+                boolean success;
+                try {
+                    success = done.get();
+                } catch (ExecutionException e) {
+                    System.err.println("ERROR in " + stage.name + ": " + e.getCause());
+                    e.getCause().printStackTrace();
+                    success = false;
+                }
+                if (success)
+                    finished.add(stage);
+                else
+                    failed = true;
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        return !failed;
+    }
+
+    private boolean execute(Stage stage, RunReport report) throws Exception {
+        FileSystem fs = stage.output.getFileSystem(conf);
+        if (fs.exists(stage.output)) {
+            if (!fs.exists(new Path(stage.output, MARKER)) && !conf.getBoolean(OVERWRITE, false))
+                throw new IOException(stage.output + " exists but no stage completed it; delete it or run with -D "
+                        + OVERWRITE + "=true");
+            System.err.println("Removing outdated " + stage.output);
+            fs.delete(stage.output, true);
+        }
+        // From here on the output is this run's own, so a failure removes it
+        boolean success = false;
+        try {
+            System.err.println("Starting " + stage.name);
+            Job job = Job.getInstance(conf, stage.name);
+            job.setJarByClass(DirtDriver.class);
+            FileOutputFormat.setOutputPath(job, stage.output);
+            stage.setup.configure(job);
+            if (!report.run(job))
+                return false;
+            Properties marker = new Properties();
+            if (stage.completion != null)
+                stage.completion.done(job, marker);
+            marker.setProperty(FINGERPRINT, stage.fingerprint);
+            try (OutputStream out = fs.create(new Path(stage.output, MARKER), true)) {
+                marker.store(out, stage.name);
+            }
+            success = true;
+            return true;
+        } finally {
+            if (!success && fs.exists(stage.output)) {
+                System.err.println("Removing partial output of " + stage.name + " at " + stage.output);
+                fs.delete(stage.output, true);
+            }
+        }
+    }
+
+    private Properties readMarker(Stage stage) throws IOException {
+        Path file = new Path(stage.output, MARKER);
+        FileSystem fs = file.getFileSystem(conf);
+        if (!fs.exists(file))
+            return null;
+        Properties marker = new Properties();
+        try (InputStream in = fs.open(file)) {
+            marker.load(in);
+        }
+        return marker;
+    }
+
+    private String fingerprint(Stage stage) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); // every JVM has SHA-256
+        }
+        StringBuilder sb = new StringBuilder(stage.name).append('\n');
+        for (String key : stage.settings)
+            sb.append(key).append('=').append(conf.get(key)).append('\n');
+        for (Stage dep : stage.deps)
+            sb.append(dep.fingerprint).append('\n');
+        for (Path input : stage.inputs) {
+            FileSystem fs = input.getFileSystem(conf);
+            FileStatus[] matches = fs.globStatus(input);
+            if (matches == null)
+                continue;
+            for (FileStatus match : matches) {
+                RemoteIterator<LocatedFileStatus> files = fs.listFiles(match.getPath(), true);
+                while (files.hasNext()) {
+                    LocatedFileStatus f = files.next();
+                    sb.append(f.getPath()).append('\t').append(f.getLen()).append('\t')
+                            .append(f.getModificationTime()).append('\n');
+                }
+            }
+        }
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest(sb.toString().getBytes(StandardCharsets.UTF_8)))
+            hex.append(String.format("%02x", b));
+        return hex.toString();
+    }
+}
@@ -0,0 +1,140 @@
+package com.dirt;
+
+import com.dirt.DirtDriver.Job1_Extraction;
+import com.dirt.DirtDriver.Sentence;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.StringTokenizer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Job1_Extraction.Map.parseLine against the String parser it replaced
+ * (split("\t"), Long.parseLong of the count, a StringTokenizer over the
+ * n-gram and three lastIndexOf per token), on well-formed and malformed
+ * biarcs lines.
+ */
+public class BiarcsParserTest {
+    private static final String[] LINES = {
+            "cause\tvirus/NN/nsubj/2 cause/VBZ/ROOT/0 disease/NN/dobj/2\t42\t1990,42",
+            "cause\tvirus/NN/nsubj/2 cause/VBZ/ROOT/0 disease/NN/dobj/2\t42",
+            // Count missing, empty, not a number, signed, out of range
+            "cause\tvirus/NN/nsubj/2 cause/VBZ/ROOT/0",
+            "cause\tvirus/NN/nsubj/2 cause/VBZ/ROOT/0\t",
+            "cause\tvirus/NN/nsubj/2 cause/VBZ/ROOT/0\t\t\t",
+            "cause\tvirus/NN/nsubj/2 cause/VBZ/ROOT/0\t\t7",
+            "cause\tvirus/NN/nsubj/2 cause/VBZ/ROOT/0\tmany",
+            "cause\tvirus/NN/nsubj/2 cause/VBZ/ROOT/0\t+5",
+            "cause\tvirus/NN/nsubj/2 cause/VBZ/ROOT/0\t-5",
+            "cause\tvirus/NN/nsubj/2 cause/VBZ/ROOT/0\t-",
+            "cause\tvirus/NN/nsubj/2 cause/VBZ/ROOT/0\t9223372036854775807",
+            "cause\tvirus/NN/nsubj/2 cause/VBZ/ROOT/0\t9223372036854775808",
+            "cause\tvirus/NN/nsubj/2 cause/VBZ/ROOT/0\t-9223372036854775808",
+            "cause\tvirus/NN/nsubj/2 cause/VBZ/ROOT/0\t\u0664\u0662",
+            // Too few fields
+            "",
+            "cause",
+            "cause\tvirus/NN/nsubj/2",
+            "\t\t\t",
+            // Tokens without three slashes or with a bad head are skipped
+            "x\tvirus/NN/nsubj cause/VBZ/ROOT/0 word disease/NN/dobj/2\t3",
+            "x\tvirus/NN/nsubj/two cause/VBZ/ROOT/0 disease/NN/dobj/\t3",
+            "x\tvirus/NN/nsubj/+2 cause/VBZ/ROOT/-1 disease/NN/dobj/2147483647\t3",
+            "x\tvirus/NN/nsubj/2147483648 cause/VBZ/ROOT/-2147483648 a/DT/det/-2147483649\t3",
+            "x\tvirus/NN/nsubj/\u0662 cause/VBZ/ROOT/0\t3",
+            "x\tnothing here\t3",
+            "x\t\t3",
+            "x\t \t3",
+            // Slashes inside the word, odd spacing, empty fields inside a token
+            "x\t1/2/CD/num/2  and/or/CC/cc/0 /NN/dobj/1 ///0\t3",
+            "x\t  virus/NN/nsubj/2   cause/VBZ/ROOT/0  \t3",
+            "x\tvirus/NN/nsubj/2\tcause/VBZ/ROOT/0\t3",
+            // Non-ASCII words and tags
+            "x\tcaf\u00e9/NN/nsubj/2 serve/VBZ/ROOT/0 cr\u00e8me/NNS/dobj/2 to/TO/prep/2 in/IN/prep/2\t3",
+    };
+
+    @Test
+    public void matchesStringParser() {
+        Job1_Extraction.Map map = new Job1_Extraction.Map();
+        for (String line : LINES) {
+            byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+            Sentence sentence = map.parseLine(bytes, bytes.length);
+
+            String[] parts = line.split("\t");
+            List<String[]> expected = parts.length < 3 ? null : parse(parts[1]);
+            if (expected == null || expected.isEmpty()) {
+                assertNull(line, sentence);
+                continue;
+            }
+            assertEquals(line, count(parts[2]), sentence.count());
+            assertEquals(line, expected.size(), sentence.size());
+            for (int i = 0; i < expected.size(); i++) {
+                String[] t = expected.get(i);
+                String where = line + " token " + i;
+                assertEquals(where, t[0], sentence.word(i));
+                assertEquals(where, t[2], sentence.dep(i));
+                assertEquals(where, Integer.parseInt(t[3]), sentence.head(i));
+                assertEquals(where, t[1].startsWith("N"), sentence.isNoun(i));
+                assertEquals(where, t[1].startsWith("V"), sentence.isVerb(i));
+                assertEquals(where, "IN".equals(t[1]) || "TO".equals(t[1]), sentence.isPrep(i));
+            }
+        }
+    }
+
+    @Test
+    public void reusesBufferAcrossLines() {
+        Job1_Extraction.Map map = new Job1_Extraction.Map();
+        byte[] longLine = ("x\ta/NN/nsubj/2 b/VBZ/ROOT/0 c/NN/dobj/2 d/IN/prep/2 e/NN/pobj/4\t3")
+                .getBytes(StandardCharsets.UTF_8);
+        byte[] shortLine = "x\tf/NN/nsubj/0\t3".getBytes(StandardCharsets.UTF_8);
+        assertEquals(5, map.parseLine(longLine, longLine.length).size());
+        Sentence sentence = map.parseLine(shortLine, shortLine.length);
+        assertEquals(1, sentence.size());
+        assertEquals("f", sentence.word(0));
+        // A Text buffer is longer than its content: bytes past len are ignored
+        byte[] padded = new byte[shortLine.length + 8];
+        System.arraycopy(shortLine, 0, padded, 0, shortLine.length);
+        padded[shortLine.length] = ' ';
+        assertEquals(1, map.parseLine(padded, shortLine.length).size());
+    }
+
+    private static long count(String field) {
+        try {
+            return Long.parseLong(field);
+        } catch (NumberFormatException e) {
+            return 1;
+        }
+    }
+
+    /** The n-gram parser Job 1 used before parseLine: {word, pos, dep, head} per token. */
+    private static List<String[]> parse(String ngram) {
+        List<String[]> tokens = new ArrayList<>();
+        StringTokenizer st = new StringTokenizer(ngram, " ");
+        while (st.hasMoreTokens()) {
+            String tokenStr = st.nextToken();
+            int lastSlash = tokenStr.lastIndexOf('/');
+            if (lastSlash == -1)
+                continue;
+            int secondLastSlash = tokenStr.lastIndexOf('/', lastSlash - 1);
+            if (secondLastSlash == -1)
+                continue;
+            int thirdLastSlash = tokenStr.lastIndexOf('/', secondLastSlash - 1);
+            if (thirdLastSlash == -1)
+                continue;
+            try {
+                String headStr = tokenStr.substring(lastSlash + 1);
+                String dep = tokenStr.substring(secondLastSlash + 1, lastSlash);
+                String pos = tokenStr.substring(thirdLastSlash + 1, secondLastSlash);
+                String word = tokenStr.substring(0, thirdLastSlash);
+                tokens.add(new String[]{word, pos, dep, String.valueOf(Integer.parseInt(headStr))});
+            } catch (Exception e) {
+                continue;
+            }
+        }
+        return tokens;
+    }
+}
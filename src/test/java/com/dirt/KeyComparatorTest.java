@@ -0,0 +1,140 @@
+package com.dirt;
+
+import com.dirt.DirtDriver.BlockFeatureKey;
+import com.dirt.DirtDriver.BlockGroupingComparator;
+import com.dirt.DirtDriver.BlockPartitioner;
+import com.dirt.DirtDriver.PathSlotGroupingComparator;
+import com.dirt.DirtDriver.PathSlotKey;
+import com.dirt.DirtDriver.PathSlotPartitioner;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableComparator;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The raw comparators of the Job 2 and Job 3 shuffle keys against
+ * compareTo on the deserialized keys, and their partitioners against
+ * the grouping comparators.
+ */
+public class KeyComparatorTest {
+    private static final int[] EDGES = {0, 1, -1, 255, 256, Integer.MAX_VALUE, Integer.MIN_VALUE};
+    private static final int KEYS = 200;
+
+    private final Random random = new Random(42);
+
+    @Test
+    public void pathSlotKeyBytesSortLikeObjects() throws IOException {
+        PathSlotKey[] keys = new PathSlotKey[KEYS];
+        for (int i = 0; i < KEYS; i++)
+            keys[i] = new PathSlotKey(anInt(), random.nextInt(2), random.nextInt(2), anInt());
+        Serialized s = serialize(keys, PathSlotKey.SIZE);
+        WritableComparator sort = WritableComparator.get(PathSlotKey.class);
+        PathSlotGroupingComparator group = new PathSlotGroupingComparator();
+        for (int i = 0; i < KEYS; i++)
+            for (int j = 0; j < KEYS; j++) {
+                PathSlotKey a = keys[i], b = keys[j];
+                String where = fields(a) + " vs " + fields(b);
+                assertEquals(where, Integer.signum(a.compareTo(b)), Integer.signum(s.compare(sort, i, j)));
+                int sameGroup = a.path != b.path ? Integer.compare(a.path, b.path) : Integer.compare(a.slot, b.slot);
+                assertEquals(where, Integer.signum(sameGroup), Integer.signum(s.compare(group, i, j)));
+                assertEquals(where, Integer.signum(sameGroup), Integer.signum(group.compare(a, b)));
+            }
+    }
+
+    @Test
+    public void pathSlotKeyMarginAndTriplesSharePartition() {
+        PathSlotPartitioner<NullWritable> partitioner = new PathSlotPartitioner<>();
+        for (int i = 0; i < KEYS; i++) {
+            int path = anInt(), slot = random.nextInt(2);
+            int reducers = 1 + random.nextInt(50);
+            int margin = partitioner.getPartition(new PathSlotKey(path, slot, 0, 0), null, reducers);
+            int triple = partitioner.getPartition(new PathSlotKey(path, slot, 1, anInt()), null, reducers);
+            assertEquals(margin, triple);
+            assertTrue(margin >= 0 && margin < reducers);
+        }
+    }
+
+    @Test
+    public void blockFeatureKeyBytesSortLikeObjects() throws IOException {
+        BlockFeatureKey[] keys = new BlockFeatureKey[KEYS];
+        for (int i = 0; i < KEYS; i++) {
+            keys[i] = new BlockFeatureKey();
+            keys[i].set(anInt(), random.nextInt(2), anInt(), anInt());
+        }
+        Serialized s = serialize(keys, BlockFeatureKey.SIZE);
+        WritableComparator sort = WritableComparator.get(BlockFeatureKey.class);
+        BlockGroupingComparator group = new BlockGroupingComparator();
+        for (int i = 0; i < KEYS; i++)
+            for (int j = 0; j < KEYS; j++) {
+                String where = keys[i] + " vs " + keys[j];
+                BlockFeatureKey a = keys[i], b = keys[j];
+                assertEquals(where, Integer.signum(a.compareTo(b)), Integer.signum(s.compare(sort, i, j)));
+                int sameGroup = Integer.compare(a.block, b.block);
+                assertEquals(where, Integer.signum(sameGroup), Integer.signum(s.compare(group, i, j)));
+                assertEquals(where, Integer.signum(sameGroup), Integer.signum(group.compare(a, b)));
+            }
+    }
+
+    @Test
+    public void blockPartitionIsBlockModReducers() {
+        BlockPartitioner<NullWritable> partitioner = new BlockPartitioner<>();
+        BlockFeatureKey key = new BlockFeatureKey();
+        for (int block = 0; block < 1000; block++) {
+            key.set(block, random.nextInt(2), anInt(), anInt());
+            assertEquals(block % 7, partitioner.getPartition(key, null, 7));
+        }
+    }
+
+    private static String fields(PathSlotKey k) {
+        return k.path + "/" + k.slot + "/" + k.type + "/" + k.word;
+    }
+
+    /** Small ids (many ties), edge values and arbitrary ints. */
+    private int anInt() {
+        switch (random.nextInt(3)) {
+            case 0:
+                return random.nextInt(4);
+            case 1:
+                return EDGES[random.nextInt(EDGES.length)];
+            default:
+                return random.nextInt();
+        }
+    }
+
+    /** Writes the keys back to back after a junk prefix, so a comparator that ignores its start offsets fails. */
+    private static Serialized serialize(Writable[] keys, int size) throws IOException {
+        DataOutputBuffer out = new DataOutputBuffer();
+        out.write(new byte[]{7, 7, 7});
+        int[] starts = new int[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            starts[i] = out.getLength();
+            keys[i].write(out);
+            assertEquals(size, out.getLength() - starts[i]);
+        }
+        return new Serialized(Arrays.copyOf(out.getData(), out.getLength()), starts, size);
+    }
+
+    private static class Serialized {
+        final byte[] bytes;
+        final int[] starts;
+        final int size;
+
+        Serialized(byte[] bytes, int[] starts, int size) {
+            this.bytes = bytes;
+            this.starts = starts;
+            this.size = size;
+        }
+
+        int compare(WritableComparator comparator, int i, int j) {
+            return comparator.compare(bytes, starts[i], size, bytes, starts[j], size);
+        }
+    }
+}
@@ -0,0 +1,227 @@
+package com.dirt;
+
+import com.dirt.DirtDriver.Ids;
+import com.dirt.DirtDriver.Job3_Overlap.PairBlocks;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * PairBlocks on pair graphs with skewed stars, chains, cliques and
+ * isolated pairs: every pair is scored in exactly one block, no block
+ * holds more than dirt.block.max.paths paths or mixes components, a
+ * component that fits is one block, every path is shipped to exactly the
+ * blocks that need it, and block % reducers balances the load.
+ */
+public class PairBlocksTest {
+    private static final int[] MAX_PATHS = {2, 3, 7, 40, PairBlocks.DEFAULT_MAX_PATHS};
+    private static final int[] REDUCERS = {1, 3, 8};
+
+    @Test
+    public void randomGraphs() {
+        Random random = new Random(11);
+        for (int round = 0; round < 30; round++) {
+            long[] pairs = randomPairs(random);
+            for (int maxPaths : MAX_PATHS)
+                for (int reducers : REDUCERS) {
+                    PairBlocks blocks = check(pairs.clone(), maxPaths, reducers);
+                    // The mapper and the reducer read the test set in their own order
+                    long[] reversed = pairs.clone();
+                    for (int i = 0; i < reversed.length / 2; i++) {
+                        long t = reversed[i];
+                        reversed[i] = reversed[reversed.length - 1 - i];
+                        reversed[reversed.length - 1 - i] = t;
+                    }
+                    assertSameBlocks(pairs, blocks, new PairBlocks(reversed, maxPaths, reducers));
+                }
+        }
+    }
+
+    @Test
+    public void hubIsCutAcrossBlocks() {
+        // One path paired with 1000 others: only the hub is shipped more than once
+        long[] pairs = new long[1000];
+        for (int i = 0; i < pairs.length; i++)
+            pairs[i] = Ids.pack(0, i + 1);
+        PairBlocks blocks = check(pairs, 7, 4);
+        int blocksOfHub = blocks.blocksOf(0).length;
+        assertEquals((1000 + 5) / 6, blocksOfHub);
+        for (int leaf = 1; leaf <= 1000; leaf++)
+            assertEquals(1, blocks.blocksOf(leaf).length);
+    }
+
+    @Test
+    public void pathsOutsidePairsHaveNoBlocks() {
+        PairBlocks blocks = new PairBlocks(new long[]{Ids.pack(2, 5), Ids.pack(5, 9)}, 500, 2);
+        assertNull(blocks.blocksOf(0));
+        assertNull(blocks.blocksOf(7));
+        assertNull(blocks.blocksOf(100));
+        assertEquals(1, blocks.blocksOf(9).length);
+    }
+
+    private static long[] randomPairs(Random random) {
+        Set<Long> pairs = new LinkedHashSet<>();
+        int next = random.nextInt(3);
+        int components = 1 + random.nextInt(20);
+        for (int c = 0; c < components; c++) {
+            int size = 2 + random.nextInt(random.nextBoolean() ? 5 : 120);
+            int first = next;
+            next += size + random.nextInt(3); // ids with gaps, as in a real test set
+            switch (random.nextInt(4)) {
+                case 0: // star around a random member
+                    int hub = first + random.nextInt(size);
+                    for (int p = first; p < first + size; p++)
+                        if (p != hub)
+                            pairs.add(pair(hub, p));
+                    break;
+                case 1: // chain
+                    for (int p = first; p + 1 < first + size; p++)
+                        pairs.add(pair(p, p + 1));
+                    break;
+                case 2: // clique of at most 15 paths
+                    for (int p = first; p < first + Math.min(size, 15); p++)
+                        for (int q = p + 1; q < first + Math.min(size, 15); q++)
+                            pairs.add(pair(p, q));
+                    break;
+                default: // random tree
+                    for (int p = first + 1; p < first + size; p++)
+                        pairs.add(pair(first + random.nextInt(p - first), p));
+            }
+        }
+        long[] out = new long[pairs.size()];
+        int i = 0;
+        for (long pair : pairs)
+            out[i++] = pair;
+        for (int j = out.length - 1; j > 0; j--) {
+            int k = random.nextInt(j + 1);
+            long t = out[j];
+            out[j] = out[k];
+            out[k] = t;
+        }
+        return out;
+    }
+
+    private static void assertSameBlocks(long[] pairs, PairBlocks expected, PairBlocks actual) {
+        for (long pair : pairs)
+            for (int path : new int[]{Ids.high(pair), Ids.low(pair)}) {
+                assertArrayEquals(expected.blocksOf(path), actual.blocksOf(path));
+                for (int id : expected.blocksOf(path))
+                    assertArrayEquals(expected.pairsOf(id), actual.pairsOf(id));
+            }
+    }
+
+    private static long pair(int a, int b) {
+        return Ids.pack(Math.min(a, b), Math.max(a, b));
+    }
+
+    private static PairBlocks check(long[] pairs, int maxPaths, int reducers) {
+        Set<Long> input = new HashSet<>();
+        Set<Integer> paths = new HashSet<>();
+        for (long pair : pairs) {
+            input.add(pair);
+            paths.add(Ids.high(pair));
+            paths.add(Ids.low(pair));
+        }
+        Map<Integer, Integer> component = components(pairs);
+        Map<Integer, Integer> componentPaths = new HashMap<>();
+        for (int path : paths)
+            componentPaths.merge(component.get(path), 1, Integer::sum);
+
+        PairBlocks blocks = new PairBlocks(pairs, maxPaths, reducers);
+        String where = input.size() + " pairs, max " + maxPaths + " paths, " + reducers + " reducers";
+
+        Set<Integer> ids = new HashSet<>();
+        for (int path : paths)
+            for (int id : blocks.blocksOf(path))
+                ids.add(id);
+
+        Set<Long> covered = new HashSet<>();
+        Map<Integer, Set<Integer>> shippedTo = new HashMap<>();
+        long[] load = new long[reducers];
+        long heaviest = 0;
+        for (int id : ids) {
+            long[] blockPairs = blocks.pairsOf(id);
+            long[] sorted = blockPairs.clone();
+            Arrays.sort(sorted);
+            assertArrayEquals(where, sorted, blockPairs);
+            Set<Integer> blockPaths = new HashSet<>();
+            Set<Integer> blockComponents = new HashSet<>();
+            for (long pair : blockPairs) {
+                assertTrue(where, covered.add(pair));
+                blockPaths.add(Ids.high(pair));
+                blockPaths.add(Ids.low(pair));
+                blockComponents.add(component.get(Ids.high(pair)));
+            }
+            assertTrue(where, blockPaths.size() <= maxPaths);
+            assertEquals(where, 1, blockComponents.size());
+            int c = blockComponents.iterator().next();
+            if (componentPaths.get(c) <= maxPaths)
+                assertEquals(where, componentPaths.get(c).intValue(), blockPaths.size());
+            for (int path : blockPaths)
+                shippedTo.computeIfAbsent(path, k -> new HashSet<>()).add(id);
+            long weight = blockPairs.length + blockPaths.size();
+            load[id % reducers] += weight;
+            heaviest = Math.max(heaviest, weight);
+        }
+        assertEquals(where, input, covered);
+
+        for (int path : paths) {
+            int[] of = blocks.blocksOf(path);
+            Set<Integer> distinct = new HashSet<>();
+            for (int id : of)
+                distinct.add(id);
+            assertEquals(where, of.length, distinct.size());
+            assertEquals(where, shippedTo.get(path), distinct);
+        }
+
+        // Heaviest block first to the least loaded reducer: loads differ by at most one block
+        long min = Long.MAX_VALUE, max = 0;
+        for (long l : load) {
+            min = Math.min(min, l);
+            max = Math.max(max, l);
+        }
+        assertTrue(where, max - min <= heaviest);
+        return blocks;
+    }
+
+    /** Smallest path id of each path's component. */
+    private static Map<Integer, Integer> components(long[] pairs) {
+        Map<Integer, List<Integer>> adj = new HashMap<>();
+        for (long pair : pairs) {
+            adj.computeIfAbsent(Ids.high(pair), k -> new ArrayList<>()).add(Ids.low(pair));
+            adj.computeIfAbsent(Ids.low(pair), k -> new ArrayList<>()).add(Ids.high(pair));
+        }
+        Map<Integer, Integer> component = new HashMap<>();
+        for (int start : adj.keySet()) {
+            if (component.containsKey(start))
+                continue;
+            List<Integer> members = new ArrayList<>();
+            members.add(start);
+            component.put(start, start);
+            int min = start;
+            for (int i = 0; i < members.size(); i++)
+                for (int next : adj.get(members.get(i)))
+                    if (!component.containsKey(next)) {
+                        component.put(next, start);
+                        members.add(next);
+                        min = Math.min(min, next);
+                    }
+            for (int member : members)
+                component.put(member, min);
+        }
+        return component;
+    }
+}
@@ -0,0 +1,224 @@
+package com.dirt;
+
+import com.dirt.DirtDriver.Job1_Extraction;
+import com.dirt.DirtDriver.PathExtractor;
+import com.dirt.DirtDriver.PorterStemmer;
+import com.dirt.DirtDriver.Sentence;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * PathExtractor.extractPaths (one BFS per source noun over reusable
+ * buffers) against the per-pair BFS it replaced. Biarcs heads are not
+ * guaranteed to form a tree, so the fixtures include cycles, self-heads,
+ * heads outside the n-gram and disconnected tokens.
+ */
+public class PathExtractorTest {
+    private static final String[] POS = {"NN", "NNS", "NNP", "VBZ", "VBD", "VB", "IN", "TO", "DT", "JJ"};
+    private static final String[] WORDS = {"virus", "Cells", "disease", "cause", "is", "Has", "made", "running",
+            "from", "to", "the", "Red", "treatment"};
+    private static final String[] DEPS = {"nsubj", "dobj", "prep", "pobj", "det", "amod", "ROOT"};
+
+    private static final String[] SENTENCES = {
+            // A tree
+            "virus/NN/nsubj/2 cause/VBZ/ROOT/0 disease/NN/dobj/2",
+            "drug/NN/nsubj/2 made/VBD/ROOT/0 from/IN/prep/2 plants/NNS/pobj/3",
+            // Only an auxiliary verb on the path
+            "virus/NN/nsubj/2 is/VBZ/ROOT/0 disease/NN/attr/2",
+            // Two-token cycle, self-head, and a cycle through three tokens
+            "virus/NN/nsubj/2 cause/VBZ/dep/1 disease/NN/dobj/2",
+            "virus/NN/nsubj/1 cause/VBZ/ROOT/1 disease/NN/dobj/2",
+            "virus/NN/nsubj/3 cause/VBZ/dep/1 disease/NN/dobj/2 cells/NNS/conj/3",
+            // Heads past the end, negative or zero, and an unreachable noun
+            "virus/NN/nsubj/2 cause/VBZ/ROOT/9 disease/NN/dobj/-3 cells/NNS/dobj/2",
+            "virus/NN/nsubj/0 cells/NNS/nsubj/0",
+            "virus/NN/nsubj/2 cause/VBZ/ROOT/2147483647 disease/NN/dobj/2",
+            // Two paths of the same length: BFS order picks the same one
+            "virus/NN/nsubj/2 cause/VBZ/ROOT/0 disease/NN/dobj/2 make/VB/conj/1 disease/NN/dobj/4",
+    };
+
+    @Test
+    public void fixturesMatchPerPairSearch() {
+        for (String ngram : SENTENCES)
+            check(ngram);
+    }
+
+    @Test
+    public void randomGraphsMatchPerPairSearch() {
+        Random random = new Random(7);
+        for (int s = 0; s < 2000; s++) {
+            int n = 1 + random.nextInt(14);
+            StringBuilder ngram = new StringBuilder();
+            for (int i = 0; i < n; i++) {
+                if (i > 0)
+                    ngram.append(' ');
+                ngram.append(WORDS[random.nextInt(WORDS.length)]).append('/')
+                        .append(POS[random.nextInt(POS.length)]).append('/')
+                        .append(DEPS[random.nextInt(DEPS.length)]).append('/')
+                        .append(random.nextInt(n + 4) - 2);
+            }
+            check(ngram.toString());
+        }
+    }
+
+    @Test
+    public void buffersGrowAndShrinkBetweenSentences() {
+        PathExtractor extractor = new PathExtractor();
+        StringBuilder chain = new StringBuilder("n0/NN/nsubj/2");
+        for (int i = 1; i < 40; i++)
+            chain.append(' ').append(i % 2 == 1 ? "cause" : "n" + i).append(i % 2 == 1 ? "/VBZ/dep/" : "/NN/dep/")
+                    .append(i + 2);
+        assertEquals(expected(chain.toString()), actual(extractor, chain.toString()));
+        assertEquals(expected(SENTENCES[0]), actual(extractor, SENTENCES[0]));
+    }
+
+    private static void check(String ngram) {
+        assertEquals(ngram, expected(ngram), actual(new PathExtractor(), ngram));
+    }
+
+    private static List<String> actual(PathExtractor extractor, String ngram) {
+        byte[] line = ("x\t" + ngram + "\t1").getBytes(StandardCharsets.UTF_8);
+        Sentence sentence = new Job1_Extraction.Map().parseLine(line, line.length);
+        List<String> out = new ArrayList<>();
+        if (sentence == null)
+            return out;
+        int count = extractor.extractPaths(sentence);
+        for (int i = 0; i < count; i++)
+            out.add(extractor.path(i) + "\t" + extractor.x(i) + "\t" + extractor.y(i));
+        return out;
+    }
+
+    // The extraction Job 1 used before the single-pass search: one BFS per noun pair.
+
+    private static final Set<String> AUX = new HashSet<>(Arrays.asList(
+            "be", "am", "is", "are", "was", "were", "been", "being",
+            "do", "does", "did", "have", "has", "had", "will", "would",
+            "shall", "should", "can", "could", "may", "might", "must"));
+
+    private static class Token {
+        final String word, pos, dep;
+        final int head;
+
+        Token(String token) {
+            String[] f = token.split("/");
+            word = f[0];
+            pos = f[1];
+            dep = f[2];
+            head = Integer.parseInt(f[3]);
+        }
+
+        boolean isNoun() {
+            return pos.startsWith("N");
+        }
+
+        boolean isVerb() {
+            return pos.startsWith("V");
+        }
+
+        boolean isPrep() {
+            return "IN".equals(pos) || "TO".equals(pos);
+        }
+    }
+
+    private static List<String> expected(String ngram) {
+        PorterStemmer stemmer = new PorterStemmer();
+        List<Token> tokens = new ArrayList<>();
+        for (String t : ngram.split(" "))
+            tokens.add(new Token(t));
+        List<String> results = new ArrayList<>();
+        List<Integer> nouns = new ArrayList<>();
+        for (int i = 0; i < tokens.size(); i++)
+            if (tokens.get(i).isNoun())
+                nouns.add(i);
+        for (int i = 0; i < nouns.size(); i++)
+            for (int j = i + 1; j < nouns.size(); j++) {
+                int src = nouns.get(i), dst = nouns.get(j);
+                List<Integer> path = shortestPath(tokens, src, dst);
+                if (path != null && isValid(tokens, path))
+                    results.add(buildPath(tokens, path, stemmer) + "\t" + stemmer.stem(tokens.get(src).word) + "\t"
+                            + stemmer.stem(tokens.get(dst).word));
+            }
+        return results;
+    }
+
+    private static boolean isValid(List<Token> toks, List<Integer> path) {
+        for (int idx : path) {
+            Token t = toks.get(idx);
+            if (t.isVerb() && !AUX.contains(t.word.toLowerCase()))
+                return true;
+        }
+        return false;
+    }
+
+    private static String buildPath(List<Token> toks, List<Integer> path, PorterStemmer stemmer) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < path.size(); i++) {
+            int curr = path.get(i);
+            Token t = toks.get(curr);
+            if (i == 0 || i == path.size() - 1)
+                sb.append("N");
+            else if (t.isVerb())
+                sb.append("V:").append(stemmer.stem(t.word));
+            else if (t.isPrep())
+                sb.append("P:").append(t.word.toLowerCase());
+            else
+                sb.append("W:").append(t.word.toLowerCase());
+            if (i < path.size() - 1) {
+                int next = path.get(i + 1);
+                String rel = (t.head - 1 == next) ? "<" + t.dep : ">" + toks.get(next).dep;
+                sb.append(":").append(rel).append(":");
+            }
+        }
+        return sb.toString();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<Integer> shortestPath(List<Token> tokens, int src, int dst) {
+        int n = tokens.size();
+        List<Integer>[] adj = new List[n];
+        for (int i = 0; i < n; i++)
+            adj[i] = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            int h = tokens.get(i).head - 1;
+            if (h >= 0 && h < n) {
+                adj[i].add(h);
+                adj[h].add(i);
+            }
+        }
+        int[] prev = new int[n];
+        Arrays.fill(prev, -1);
+        Queue<Integer> q = new LinkedList<>();
+        q.add(src);
+        prev[src] = src;
+        while (!q.isEmpty()) {
+            int u = q.poll();
+            if (u == dst)
+                break;
+            for (int v : adj[u])
+                if (prev[v] == -1) {
+                    prev[v] = u;
+                    q.add(v);
+                }
+        }
+        if (prev[dst] == -1)
+            return null;
+        List<Integer> path = new ArrayList<>();
+        for (int curr = dst; curr != src; curr = prev[curr])
+            path.add(curr);
+        path.add(src);
+        Collections.reverse(path);
+        return path;
+    }
+}